@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.animation.ValueAnimator;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Debug;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link PlaceHolderIconDrawable}
+ */
+@RunWith(AndroidJUnit4.class)
+public class PlaceHolderIconDrawableTest {
+
+    private static final int PLACEHOLDER_COLOR = 0xFF3F51B5;
+    private static final long FRAME_DURATION_MS = 16;
+    private static final long MEASURED_DURATION_MS = 200;
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void iconUpdateFrames_doNotAllocate() {
+        int[] allocCount = new int[1];
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            Bitmap bitmap = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+            PlaceHolderIconDrawable placeholder = new PlaceHolderIconDrawable(
+                    BitmapInfo.of(bitmap, PLACEHOLDER_COLOR), context);
+            Drawable newIcon = new ColorDrawable(Color.RED);
+            newIcon.setBounds(0, 0, 10, 10);
+
+            // Warm up the animator and the filters for the alpha of every frame
+            playFrames(placeholder.createIconUpdateAnimation(newIcon));
+
+            // The animator is initialized by its first frame, before counting
+            ValueAnimator animator = placeholder.createIconUpdateAnimation(newIcon);
+            animator.setCurrentPlayTime(0);
+
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            playFrames(animator);
+            allocCount[0] = Debug.getThreadAllocCount();
+            Debug.stopAllocCounting();
+        });
+        assertEquals("Allocations while playing the icon update animation", 0, allocCount[0]);
+    }
+
+    @Test
+    public void iconUpdateFrames_applyTintFilter() {
+        Drawable[] newIcon = new Drawable[1];
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            Bitmap bitmap = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+            PlaceHolderIconDrawable placeholder = new PlaceHolderIconDrawable(
+                    BitmapInfo.of(bitmap, PLACEHOLDER_COLOR), context);
+            newIcon[0] = new ColorDrawable(Color.RED);
+
+            placeholder.createIconUpdateAnimation(newIcon[0])
+                    .setCurrentPlayTime(FRAME_DURATION_MS);
+        });
+        assertNotNull(newIcon[0].getColorFilter());
+    }
+
+    /**
+     * Drives {@param animator} with a manual clock, one frame at a time
+     */
+    private static void playFrames(ValueAnimator animator) {
+        for (long time = 0; time <= MEASURED_DURATION_MS; time += FRAME_DURATION_MS) {
+            animator.setCurrentPlayTime(time);
+        }
+    }
+}
@@ -14,6 +14,8 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.PaintFlagsDrawFilter;
+import android.graphics.Path;
+import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.AdaptiveIconDrawable;
@@ -26,10 +28,13 @@ import android.os.Process;
 import android.os.UserHandle;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.android.launcher3.R;
 import com.android.launcher3.icons.BitmapInfo.Extender;
 
+import java.util.Arrays;
+
 /**
  * This class will be moved to androidx library. There shouldn't be any dependency outside
  * this package.
@@ -42,6 +47,8 @@ public class BaseIconFactory implements AutoCloseable {
     static final boolean ATLEAST_P = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P;
 
     private static final float ICON_BADGE_SCALE = 0.444f;
+    // Error used to approximate the wrapper mask, relative to its unit size
+    private static final float MASK_HASH_ERROR = 0.001f;
 
     private final Rect mOldBounds = new Rect();
     protected final Context mContext;
@@ -59,8 +66,27 @@ public class BaseIconFactory implements AutoCloseable {
     private final boolean mShapeDetection;
 
     private Drawable mWrapperIcon;
+    // Hash of the mask of mWrapperIcon, or 0 if not computed yet
+    private int mWrapperMaskHash;
     private int mWrapperBackgroundColor = DEFAULT_WRAPPER_BACKGROUND;
+
+    @Nullable
+    private NormalizationCache mNormalizationCache;
+    // Identity of the next icon to normalize, or null if the icon is not identified
+    @Nullable
+    private String mNormalizationPackage;
+    private long mNormalizationVersionCode;
+    private int mNormalizationResId;
+    private int mNormalizationDensity;
     private Bitmap mUserBadgeBitmap;
+    private final ScratchBitmapPool mScratchBitmaps = new ScratchBitmapPool();
+
+    // Pool which this factory is returned to when closed, and the thread currently holding it.
+    // Guarded by the pool.
+    @Nullable
+    IconFactoryPool<?> mPool;
+    @Nullable
+    Thread mPoolOwner;
 
     private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
     private static final float PLACEHOLDER_TEXT_SIZE = 20f;
@@ -93,6 +119,28 @@ public class BaseIconFactory implements AutoCloseable {
         mWrapperBackgroundColor = DEFAULT_WRAPPER_BACKGROUND;
         mDisableColorExtractor = false;
         mBadgeOnLeft = false;
+        mNormalizationPackage = null;
+    }
+
+    /**
+     * Sets the cache used to skip the normalization of icons identified by
+     * {@link #setNormalizationKey}
+     */
+    public void setNormalizationCache(@Nullable NormalizationCache cache) {
+        mNormalizationCache = cache;
+    }
+
+    /**
+     * Identifies the next icon rendered by this factory as the drawable {@param resId} of
+     * {@param packageName} at version {@param versionCode}, so that its normalization can be
+     * cached. The icon must be loaded as is from that resource, at {@param density}.
+     */
+    public void setNormalizationKey(@NonNull String packageName, long versionCode, int resId,
+            int density) {
+        mNormalizationPackage = packageName;
+        mNormalizationVersionCode = versionCode;
+        mNormalizationResId = resId;
+        mNormalizationDensity = density;
     }
 
     public ShadowGenerator getShadowGenerator() {
@@ -137,15 +185,17 @@ public class BaseIconFactory implements AutoCloseable {
     public BitmapInfo createIconBitmap(String placeholder, int color) {
         if (!ATLEAST_OREO) return null;
 
-        Bitmap placeholderBitmap = Bitmap.createBitmap(mIconBitmapSize, mIconBitmapSize,
+        Bitmap placeholderBitmap = mScratchBitmaps.acquire(mIconBitmapSize, mIconBitmapSize,
                 Bitmap.Config.ARGB_8888);
         mTextPaint.setColor(color);
-        Canvas canvas = new Canvas(placeholderBitmap);
-        canvas.drawText(placeholder, mIconBitmapSize / 2, mIconBitmapSize * 5 / 8, mTextPaint);
+        mCanvas.setBitmap(placeholderBitmap);
+        mCanvas.drawText(placeholder, mIconBitmapSize / 2, mIconBitmapSize * 5 / 8, mTextPaint);
+        mCanvas.setBitmap(null);
         AdaptiveIconDrawable drawable = new AdaptiveIconDrawable(
                 new ColorDrawable(PLACEHOLDER_BACKGROUND_COLOR),
                 new BitmapDrawable(mContext.getResources(), placeholderBitmap));
         Bitmap icon = createIconBitmap(drawable, IconNormalizer.ICON_VISIBLE_AREA_FACTOR);
+        mScratchBitmaps.release(placeholderBitmap);
         return BitmapInfo.of(icon, extractColor(icon));
     }
 
@@ -216,24 +266,53 @@ public class BaseIconFactory implements AutoCloseable {
             scale = new float[1];
         }
         icon = normalizeAndWrapToAdaptiveIcon(icon, shrinkNonAdaptiveIcons, null, scale);
-        Bitmap bitmap = createIconBitmap(icon, scale[0]);
+
+        // Icons of the current user are never badged, so the icon is drawn directly in the
+        // final bitmap. Otherwise the badge is applied to a scratch bitmap.
+        boolean badgeForUser = user != null && !Process.myUserHandle().equals(user);
+        Bitmap bitmap = badgeForUser
+                ? mScratchBitmaps.acquire(mIconBitmapSize, mIconBitmapSize, Bitmap.Config.ARGB_8888)
+                : Bitmap.createBitmap(mIconBitmapSize, mIconBitmapSize, Bitmap.Config.ARGB_8888);
         if (ATLEAST_OREO && icon instanceof AdaptiveIconDrawable) {
+            Bitmap unshadowed = mScratchBitmaps.acquire(
+                    mIconBitmapSize, mIconBitmapSize, Bitmap.Config.ARGB_8888);
+            drawIconBitmap(unshadowed, icon, scale[0], mIconBitmapSize);
             mCanvas.setBitmap(bitmap);
-            getShadowGenerator().recreateIcon(Bitmap.createBitmap(bitmap), mCanvas);
+            // Keep the original draw order, where the shadow and the icon are drawn over the
+            // icon itself, so that the anti-aliased edges blend the same way.
+            mCanvas.drawBitmap(unshadowed, 0, 0, null);
+            AdaptiveIconDrawable adaptiveIcon = (AdaptiveIconDrawable) icon;
+            if (isOpaqueColor(adaptiveIcon.getBackground())) {
+                // The alpha of the icon is the mask, so its shadow can be shared
+                getShadowGenerator().recreateIcon(
+                        unshadowed, IconShape.get(mIconBitmapSize), scale[0], mCanvas);
+            } else {
+                getShadowGenerator().recreateIcon(unshadowed, mCanvas);
+            }
             mCanvas.setBitmap(null);
+            mScratchBitmaps.release(unshadowed);
+        } else {
+            drawIconBitmap(bitmap, icon, scale[0], mIconBitmapSize);
         }
 
         if (isInstantApp) {
             badgeWithDrawable(bitmap, mContext.getDrawable(R.drawable.ic_instant_app_badge));
         }
-        if (user != null) {
+        if (badgeForUser) {
             BitmapDrawable drawable = new FixedSizeBitmapDrawable(bitmap);
             Drawable badged = mPm.getUserBadgedIcon(drawable, user);
+            Bitmap badgedBitmap;
             if (badged instanceof BitmapDrawable) {
-                bitmap = ((BitmapDrawable) badged).getBitmap();
+                badgedBitmap = ((BitmapDrawable) badged).getBitmap();
+                if (badgedBitmap == bitmap) {
+                    // The user doesn't have a badge, the scratch bitmap must not escape
+                    badgedBitmap = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+                }
             } else {
-                bitmap = createIconBitmap(badged, 1f);
+                badgedBitmap = createIconBitmap(badged, 1f);
             }
+            mScratchBitmaps.release(bitmap);
+            bitmap = badgedBitmap;
         }
         int color = extractColor(bitmap);
         return icon instanceof Extender
@@ -302,7 +381,13 @@ public class BaseIconFactory implements AutoCloseable {
             AdaptiveIconDrawable dr = (AdaptiveIconDrawable) mWrapperIcon;
             dr.setBounds(0, 0, 1, 1);
             boolean[] outShape = new boolean[1];
-            scale = getNormalizer().getScale(icon, outIconBounds, dr.getIconMask(), outShape);
+            Path mask = dr.getIconMask();
+            if (mShapeDetection && mWrapperMaskHash == 0) {
+                mWrapperMaskHash = Arrays.hashCode(mask.approximate(MASK_HASH_ERROR));
+            }
+            // The mask only affects the result when shape detection is enabled
+            scale = getNormalizedScale(icon, outIconBounds, mask, outShape,
+                    mShapeDetection ? mWrapperMaskHash : 0);
             if (!(icon instanceof AdaptiveIconDrawable) && !outShape[0]) {
                 FixedScaleDrawable fsd = ((FixedScaleDrawable) dr.getForeground());
                 fsd.setDrawable(icon);
@@ -313,13 +398,57 @@ public class BaseIconFactory implements AutoCloseable {
                 ((ColorDrawable) dr.getBackground()).setColor(mWrapperBackgroundColor);
             }
         } else {
-            scale = getNormalizer().getScale(icon, outIconBounds, null, null);
+            scale = getNormalizedScale(icon, outIconBounds, null, null, 0);
         }
+        mNormalizationPackage = null;
 
         outScale[0] = scale;
         return icon;
     }
 
+    /**
+     * Returns true if {@param d} is a plain color which covers all its bounds. Other drawables
+     * can report an opaque opacity without covering their bounds, for eg. a LayerDrawable.
+     */
+    @SuppressWarnings("deprecation")
+    private static boolean isOpaqueColor(@Nullable Drawable d) {
+        // The opacity of a ColorDrawable accounts for its alpha, tint and color filter
+        return d != null && d.getClass() == ColorDrawable.class
+                && d.getOpacity() == PixelFormat.OPAQUE;
+    }
+
+    /**
+     * Same as {@link IconNormalizer#getScale}, but reads and writes the result in the
+     * normalization cache when the icon was identified using {@link #setNormalizationKey}.
+     * Adaptive icons are not cached, as they are not rasterized.
+     */
+    private float getNormalizedScale(@NonNull Drawable icon, @Nullable RectF outBounds,
+            @Nullable Path path, @Nullable boolean[] outMaskShape, int shapeHash) {
+        NormalizationCache cache = mNormalizationCache;
+        if (cache == null || mNormalizationPackage == null || mNormalizationResId == 0
+                || (ATLEAST_OREO && icon instanceof AdaptiveIconDrawable)) {
+            return getNormalizer().getScale(icon, outBounds, path, outMaskShape);
+        }
+
+        NormalizationCache.Key key = new NormalizationCache.Key(mNormalizationPackage,
+                mNormalizationVersionCode, mNormalizationResId, mNormalizationDensity, shapeHash);
+        NormalizationCache.Result result = cache.get(key);
+        if (result == null) {
+            RectF bounds = new RectF();
+            boolean[] isShape = path != null ? new boolean[1] : null;
+            float scale = getNormalizer().getScale(icon, bounds, path, isShape);
+            result = new NormalizationCache.Result(scale, bounds, isShape != null && isShape[0]);
+            cache.put(key, result);
+        }
+        if (outBounds != null) {
+            outBounds.set(result.bounds);
+        }
+        if (outMaskShape != null && outMaskShape.length > 0) {
+            outMaskShape[0] = result.isShape;
+        }
+        return result.scale;
+    }
+
     /**
      * Adds the {@param badge} on top of {@param target} using the badge dimensions.
      */
@@ -353,8 +482,16 @@ public class BaseIconFactory implements AutoCloseable {
      */
     public Bitmap createIconBitmap(@NonNull Drawable icon, float scale, int size) {
         Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        drawIconBitmap(bitmap, icon, scale, size);
+        return bitmap;
+    }
+
+    /**
+     * Draws {@param icon} in the transparent {@param bitmap} of the given {@param size}
+     */
+    private void drawIconBitmap(Bitmap bitmap, @Nullable Drawable icon, float scale, int size) {
         if (icon == null) {
-            return bitmap;
+            return;
         }
         mCanvas.setBitmap(bitmap);
         mOldBounds.set(icon.getBounds());
@@ -401,12 +538,19 @@ public class BaseIconFactory implements AutoCloseable {
         }
         icon.setBounds(mOldBounds);
         mCanvas.setBitmap(null);
-        return bitmap;
     }
 
+    /**
+     * Resets the factory, and returns it to its {@link IconFactoryPool} if it was acquired from
+     * one. The factory must not be used after it is closed.
+     */
     @Override
     public void close() {
         clear();
+        IconFactoryPool<?> pool = mPool;
+        if (pool != null) {
+            pool.release(this);
+        }
     }
 
     public BitmapInfo makeDefaultIcon(UserHandle user) {
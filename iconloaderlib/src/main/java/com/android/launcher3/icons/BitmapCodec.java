@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import androidx.annotation.Nullable;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encoding used to serialize the pixels of an icon. The encoded data starts with the id of the
+ * codec, so that data written with any codec can be decoded regardless of the codec currently
+ * in use.
+ */
+public enum BitmapCodec {
+
+    /**
+     * PNG at quality 100. Smallest output, but slowest to encode and decode.
+     */
+    PNG((byte) 0),
+
+    /**
+     * Raw premultiplied ARGB_8888 pixels, compressed with deflate at its fastest level. Encoding
+     * and decoding are several times faster than PNG, at the cost of a larger output.
+     */
+    RAW_DEFLATE((byte) 1),
+
+    /**
+     * Lossless WebP, which falls back to {@link #RAW_DEFLATE} before Android R.
+     */
+    WEBP_LOSSLESS((byte) 2);
+
+    // Size of the width and height header preceding the raw pixels
+    private static final int RAW_HEADER_SIZE = 8;
+    // Icons are at most a few hundred pixels wide, so anything larger is corrupt data. This also
+    // keeps the size of the pixel buffer within an int.
+    private static final int MAX_RAW_DIMENSION = 1024;
+    // For lossless WebP, the quality is the encoder effort: 0 is the fastest and 100 the
+    // smallest output. The pixels are identical at any effort, so the fastest is preferred.
+    private static final int WEBP_LOSSLESS_EFFORT = 0;
+
+    private final byte mId;
+
+    BitmapCodec(byte id) {
+        mId = id;
+    }
+
+    /**
+     * Writes the id of the codec followed by the encoded {@param bitmap}
+     */
+    public void encode(Bitmap bitmap, DataOutputStream out) throws IOException {
+        switch (this) {
+            case WEBP_LOSSLESS:
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                    out.writeByte(mId);
+                    bitmap.compress(Bitmap.CompressFormat.WEBP_LOSSLESS, WEBP_LOSSLESS_EFFORT, out);
+                    return;
+                }
+                RAW_DEFLATE.encode(bitmap, out);
+                return;
+            case RAW_DEFLATE:
+                out.writeByte(mId);
+                encodeRaw(bitmap, out);
+                return;
+            case PNG:
+            default:
+                out.writeByte(mId);
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        }
+    }
+
+    private static void encodeRaw(Bitmap bitmap, DataOutputStream out) throws IOException {
+        if (bitmap.getConfig() != Config.ARGB_8888) {
+            // Hardware bitmaps can't be read directly
+            bitmap = bitmap.copy(Config.ARGB_8888, false);
+        }
+        ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+        bitmap.copyPixelsToBuffer(pixels);
+
+        out.writeInt(bitmap.getWidth());
+        out.writeInt(bitmap.getHeight());
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(pixels.array(), 0, pixels.position());
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decodes a bitmap previously written with {@link #encode}, starting at {@param offset}
+     * @return the decoded bitmap, or null if the data is invalid
+     */
+    @Nullable
+    public static Bitmap decode(byte[] data, int offset,
+            @Nullable BitmapFactory.Options decodeOptions) {
+        if (offset >= data.length) {
+            return null;
+        }
+        byte id = data[offset];
+        if (id == RAW_DEFLATE.mId) {
+            return decodeRaw(data, offset + 1, decodeOptions);
+        } else if (id == PNG.mId || id == WEBP_LOSSLESS.mId) {
+            return BitmapFactory.decodeByteArray(
+                    data, offset + 1, data.length - offset - 1, decodeOptions);
+        } else {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static Bitmap decodeRaw(byte[] data, int offset,
+            @Nullable BitmapFactory.Options decodeOptions) {
+        if (data.length - offset < RAW_HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.wrap(data, offset, RAW_HEADER_SIZE);
+        int width = header.getInt();
+        int height = header.getInt();
+        if (width <= 0 || height <= 0
+                || width > MAX_RAW_DIMENSION || height > MAX_RAW_DIMENSION) {
+            return null;
+        }
+
+        byte[] pixels = new byte[width * height * 4];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset + RAW_HEADER_SIZE,
+                    data.length - offset - RAW_HEADER_SIZE);
+            if (inflater.inflate(pixels) != pixels.length || !inflater.finished()) {
+                return null;
+            }
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+        bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+        if (decodeOptions != null && decodeOptions.inPreferredConfig == Config.HARDWARE) {
+            Bitmap hwBitmap = bitmap.copy(Config.HARDWARE, false);
+            if (hwBitmap != null) {
+                bitmap.recycle();
+                bitmap = hwBitmap;
+            }
+        }
+        return bitmap;
+    }
+}
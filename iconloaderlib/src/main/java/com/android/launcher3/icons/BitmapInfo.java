@@ -35,6 +35,7 @@ import com.android.launcher3.icons.ThemedIconDrawable.ThemedBitmapInfo;
 import com.android.launcher3.icons.cache.BaseIconCache;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 public class BitmapInfo {
@@ -46,6 +47,9 @@ public class BitmapInfo {
 
     protected static final byte TYPE_DEFAULT = 1;
     protected static final byte TYPE_THEMED = 2;
+    // Same as the types above, but with the pixels written using a BitmapCodec
+    protected static final byte TYPE_DEFAULT_ENCODED = 3;
+    protected static final byte TYPE_THEMED_ENCODED = 4;
 
     public final Bitmap icon;
     public final int color;
@@ -67,17 +71,56 @@ public class BitmapInfo {
     }
 
     /**
-     * Returns a serialized version of BitmapInfo
+     * Returns a copy of this info using {@param icon} instead, retaining any additional data
+     */
+    public BitmapInfo withIcon(@NonNull Bitmap icon) {
+        return BitmapInfo.of(icon, color);
+    }
+
+    /**
+     * Returns a copy of this info with the icon moved to graphics memory, or this info if the
+     * icon is already a hardware bitmap or can't be copied. The pixels of the result can't be
+     * accessed, so this should only be called once the info has been serialized.
+     */
+    public final BitmapInfo toHardwareBitmapInfo() {
+        if (!BitmapRenderer.USE_HARDWARE_BITMAP || isNullOrLowRes()
+                || icon.getConfig() == Config.HARDWARE) {
+            return this;
+        }
+        Bitmap hwIcon = icon.copy(Config.HARDWARE, false);
+        return hwIcon == null ? this : withIcon(hwIcon);
+    }
+
+    /**
+     * Returns a serialized version of BitmapInfo, using {@link BitmapCodec#PNG}. Subclasses which
+     * serialize additional data should override {@link #toByteArray(BitmapCodec)}, which is the
+     * method used by the icon cache.
      */
     @Nullable
     public byte[] toByteArray() {
+        return toByteArray(BitmapCodec.PNG);
+    }
+
+    /**
+     * Returns a serialized version of BitmapInfo, with the pixels encoded using {@param codec}
+     */
+    @Nullable
+    public byte[] toByteArray(BitmapCodec codec) {
         if (isNullOrLowRes()) {
             return null;
         }
-        ByteArrayOutputStream out = new ByteArrayOutputStream(getExpectedBitmapSize(icon) + 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(getExpectedBitmapSize(icon) + 2);
         try {
-            out.write(TYPE_DEFAULT);
-            icon.compress(Bitmap.CompressFormat.PNG, 100, out);
+            if (codec == BitmapCodec.PNG) {
+                // Keep the original format, readable by older versions
+                out.write(TYPE_DEFAULT);
+                icon.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } else {
+                DataOutputStream dos = new DataOutputStream(out);
+                dos.writeByte(TYPE_DEFAULT_ENCODED);
+                codec.encode(icon, dos);
+                dos.flush();
+            }
             out.flush();
             out.close();
             return out.toByteArray();
@@ -106,7 +149,7 @@ public class BitmapInfo {
     }
 
     /**
-     * Returns a BitmapInfo previously serialized using {@link #toByteArray()};
+     * Returns a BitmapInfo previously serialized using {@link #toByteArray(BitmapCodec)};
      */
     @NonNull
     public static BitmapInfo fromByteArray(byte[] data, int color, UserHandle user,
@@ -125,7 +168,10 @@ public class BitmapInfo {
             return BitmapInfo.of(
                     BitmapFactory.decodeByteArray(data, 1, data.length - 1, decodeOptions),
                     color);
-        } else if (data[0] == TYPE_THEMED) {
+        } else if (data[0] == TYPE_DEFAULT_ENCODED) {
+            Bitmap icon = BitmapCodec.decode(data, 1, decodeOptions);
+            return icon == null ? null : BitmapInfo.of(icon, color);
+        } else if (data[0] == TYPE_THEMED || data[0] == TYPE_THEMED_ENCODED) {
             return ThemedBitmapInfo.decode(data, color, decodeOptions, user, iconCache, context);
         } else {
             return null;
@@ -25,6 +25,7 @@ import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.ColorFilter;
 import android.graphics.Paint;
 import android.graphics.PorterDuff.Mode;
@@ -37,17 +38,17 @@ import android.graphics.drawable.LayerDrawable;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Process;
-import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.Log;
 import android.util.TypedValue;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.android.launcher3.R;
+import com.android.launcher3.icons.ClockTickDispatcher.ClockTime;
 import com.android.launcher3.icons.ThemedIconDrawable.ThemeData;
 
-import java.util.Calendar;
 import java.util.concurrent.TimeUnit;
 import java.util.function.IntFunction;
 
@@ -62,8 +63,8 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
 
     private static final boolean DISABLE_SECONDS = true;
 
-    // Time after which the clock icon should check for an update. The actual invalidate
-    // will only happen in case of any change.
+    // Time after which the clock icons should check for an update, see ClockTickDispatcher. The
+    // actual invalidate will only happen in case of any change.
     public static final long TICK_MS = DISABLE_SECONDS ? TimeUnit.MINUTES.toMillis(1) : 200L;
 
     private static final String LAUNCHER_PACKAGE = "com.android.launcher3";
@@ -185,7 +186,7 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
             foreground.setDrawable(info.secondLayerIndex, null);
             info.secondLayerIndex = INVALID_VALUE;
         }
-        info.applyTime(Calendar.getInstance(), foreground);
+        info.applyTime(ClockTime.now(), foreground);
         return wrapper;
     }
 
@@ -209,7 +210,7 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
         resetLevel(foreground, mAnimationInfo.minuteLayerIndex);
         resetLevel(foreground, mAnimationInfo.secondLayerIndex);
         draw(canvas);
-        mAnimationInfo.applyTime(Calendar.getInstance(), (LayerDrawable) getForeground());
+        mAnimationInfo.applyTime(ClockTime.now(), (LayerDrawable) getForeground());
     }
 
     @Override
@@ -238,25 +239,23 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
         public int defaultMinute;
         public int defaultSecond;
 
-        boolean applyTime(Calendar time, LayerDrawable foregroundDrawable) {
-            time.setTimeInMillis(System.currentTimeMillis());
-
+        boolean applyTime(ClockTime time, LayerDrawable foregroundDrawable) {
             // We need to rotate by the difference from the default time if one is specified.
-            int convertedHour = (time.get(Calendar.HOUR) + (12 - defaultHour)) % 12;
-            int convertedMinute = (time.get(Calendar.MINUTE) + (60 - defaultMinute)) % 60;
-            int convertedSecond = (time.get(Calendar.SECOND) + (60 - defaultSecond)) % 60;
+            int convertedHour = (time.hour + (12 - defaultHour)) % 12;
+            int convertedMinute = (time.minute + (60 - defaultMinute)) % 60;
+            int convertedSecond = (time.second + (60 - defaultSecond)) % 60;
 
             boolean invalidate = false;
             if (hourLayerIndex != INVALID_VALUE) {
                 final Drawable hour = foregroundDrawable.getDrawable(hourLayerIndex);
-                if (hour.setLevel(convertedHour * 60 + time.get(Calendar.MINUTE))) {
+                if (hour.setLevel(convertedHour * 60 + time.minute)) {
                     invalidate = true;
                 }
             }
 
             if (minuteLayerIndex != INVALID_VALUE) {
                 final Drawable minute = foregroundDrawable.getDrawable(minuteLayerIndex);
-                if (minute.setLevel(time.get(Calendar.HOUR) * 60 + convertedMinute)) {
+                if (minute.setLevel(time.hour * 60 + convertedMinute)) {
                     invalidate = true;
                 }
             }
@@ -298,6 +297,12 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
             this.bgFilter = bgFilter;
         }
 
+        @Override
+        public BitmapInfo withIcon(@NonNull Bitmap icon) {
+            return new ClockBitmapInfo(icon, color, scale, animInfo, mFlattenedBackground,
+                    themeData, bgFilter);
+        }
+
         @Override
         public FastBitmapDrawable newThemedIcon(Context context) {
             if (themeData != null) {
@@ -322,7 +327,7 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
 
         @Nullable
         @Override
-        public byte[] toByteArray() {
+        public byte[] toByteArray(BitmapCodec codec) {
             return null;
         }
 
@@ -337,14 +342,37 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
         }
     }
 
-    private static class ClockIconDrawable extends FastBitmapDrawable implements Runnable {
+    /**
+     * Drawable of an animated clock icon. The foreground layers are clipped, scaled and cached in
+     * two bitmaps the size of the bounds: one for the layers below the hands, rendered when the
+     * size changes, and one for the hands, rendered when the time changes. This has trade-offs:
+     *  - each visible clock holds two ARGB_8888 bitmaps, allocated on the UI thread when it is
+     *    first drawn, which are released while the drawable is hidden;
+     *  - the foreground is rasterized at the size of the bounds, so it blurs when the canvas is
+     *    scaled up, for eg. by the click feedback or the launch animations.
+     * As before, the color filter of the drawable applies to the foreground, but not its alpha.
+     */
+    private static class ClockIconDrawable extends FastBitmapDrawable
+            implements ClockTickDispatcher.TickListener {
 
-        private final Calendar mTime = Calendar.getInstance();
+        private final ClockTickDispatcher mDispatcher = ClockTickDispatcher.getInstance();
 
         private final ClockBitmapInfo mInfo;
+        private boolean mListeningForTicks;
 
         private final AdaptiveIconDrawable mFullDrawable;
         private final LayerDrawable mForeground;
+        // Index of the first foreground layer which changes with time. The layers below it are
+        // only rendered when the size changes, the others on every tick.
+        private final int mFirstHandLayer;
+
+        // Draws the foreground layers, with the color filter of the drawable but not its alpha
+        private final Paint mLayerPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        private final Canvas mRenderCanvas = new Canvas();
+        // Clipped and scaled foreground layers, in [0, size] bounds, or null if not rendered
+        @Nullable private Bitmap mStaticLayers;
+        @Nullable private Bitmap mHandLayers;
+        private boolean mHandsDirty;
 
         ClockIconDrawable(ClockBitmapInfo clockInfo) {
             super(clockInfo);
@@ -353,12 +381,73 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
             mFullDrawable = (AdaptiveIconDrawable) mInfo.animInfo.baseDrawableState
                     .newDrawable().mutate();
             mForeground = (LayerDrawable) mFullDrawable.getForeground();
+
+            int firstHandLayer = mForeground.getNumberOfLayers();
+            for (int index : new int[] {mInfo.animInfo.hourLayerIndex,
+                    mInfo.animInfo.minuteLayerIndex, mInfo.animInfo.secondLayerIndex}) {
+                if (index != INVALID_VALUE) {
+                    firstHandLayer = Math.min(firstHandLayer, index);
+                }
+            }
+            mFirstHandLayer = firstHandLayer;
         }
 
         @Override
         protected void onBoundsChange(Rect bounds) {
             super.onBoundsChange(bounds);
-            mFullDrawable.setBounds(bounds);
+            if (mStaticLayers != null && (mStaticLayers.getWidth() != bounds.width()
+                    || mStaticLayers.getHeight() != bounds.height())) {
+                releaseLayers();
+            }
+        }
+
+        /**
+         * Creates and renders the layer bitmaps for the current bounds if needed
+         * @return false if the bounds are empty
+         */
+        private boolean ensureLayers(Rect bounds) {
+            if (mStaticLayers != null && mHandLayers != null) {
+                return true;
+            }
+            int width = bounds.width();
+            int height = bounds.height();
+            if (width <= 0 || height <= 0) {
+                return false;
+            }
+            mFullDrawable.setBounds(0, 0, width, height);
+            mForeground.setBounds(0, 0, width, height);
+
+            mStaticLayers = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            renderLayers(mStaticLayers, 0, mFirstHandLayer);
+            mHandLayers = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mHandsDirty = true;
+            return true;
+        }
+
+        private void releaseLayers() {
+            mStaticLayers = null;
+            mHandLayers = null;
+        }
+
+        /**
+         * Renders the foreground layers in [{@param start}, {@param end}) into {@param bitmap}.
+         * The layers are not color filtered, as the filter is applied when drawing the bitmap.
+         */
+        private void renderLayers(Bitmap bitmap, int start, int end) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+            mRenderCanvas.setBitmap(bitmap);
+            int saveCount = mRenderCanvas.save();
+            mRenderCanvas.scale(mInfo.scale, mInfo.scale,
+                    bitmap.getWidth() / 2f + mInfo.offset, bitmap.getHeight() / 2f + mInfo.offset);
+            mRenderCanvas.clipPath(mFullDrawable.getIconMask());
+            for (int i = start; i < end; i++) {
+                Drawable layer = mForeground.getDrawable(i);
+                if (layer != null) {
+                    layer.draw(mRenderCanvas);
+                }
+            }
+            mRenderCanvas.restoreToCount(saveCount);
+            mRenderCanvas.setBitmap(null);
         }
 
         @Override
@@ -370,17 +459,19 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
             mInfo.drawBackground(canvas, bounds, mPaint);
 
             // prepare and draw the foreground
-            mInfo.animInfo.applyTime(mTime, mForeground);
-
-            int saveCount = canvas.save();
-            canvas.scale(mInfo.scale, mInfo.scale,
-                    bounds.exactCenterX() + mInfo.offset, bounds.exactCenterY() + mInfo.offset);
-            canvas.clipPath(mFullDrawable.getIconMask());
-            mForeground.setBounds(bounds);
-            mForeground.draw(canvas);
-            canvas.restoreToCount(saveCount);
-
-            reschedule();
+            startListeningForTicks();
+            if (mInfo.animInfo.applyTime(mDispatcher.getTime(), mForeground)) {
+                mHandsDirty = true;
+            }
+            if (!ensureLayers(bounds)) {
+                return;
+            }
+            if (mHandsDirty) {
+                renderLayers(mHandLayers, mFirstHandLayer, mForeground.getNumberOfLayers());
+                mHandsDirty = false;
+            }
+            canvas.drawBitmap(mStaticLayers, bounds.left, bounds.top, mLayerPaint);
+            canvas.drawBitmap(mHandLayers, bounds.left, bounds.top, mLayerPaint);
         }
 
         @Override
@@ -391,15 +482,14 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
         @Override
         protected void updateFilter() {
             super.updateFilter();
-            mFullDrawable.setColorFilter(mPaint.getColorFilter());
+            mLayerPaint.setColorFilter(mPaint.getColorFilter());
         }
 
         @Override
-        public void run() {
-            if (mInfo.animInfo.applyTime(mTime, mForeground)) {
+        public void onTimeTick(@NonNull ClockTime time) {
+            if (mInfo.animInfo.applyTime(time, mForeground)) {
+                mHandsDirty = true;
                 invalidateSelf();
-            } else {
-                reschedule();
             }
         }
 
@@ -407,22 +497,23 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
         public boolean setVisible(boolean visible, boolean restart) {
             boolean result = super.setVisible(visible, restart);
             if (visible) {
-                reschedule();
+                startListeningForTicks();
             } else {
-                unscheduleSelf(this);
+                if (mListeningForTicks) {
+                    mListeningForTicks = false;
+                    mDispatcher.removeListener(this);
+                }
+                // Recreated on the next draw
+                releaseLayers();
             }
             return result;
         }
 
-        private void reschedule() {
-            if (!isVisible()) {
-                return;
+        private void startListeningForTicks() {
+            if (!mListeningForTicks && isVisible()) {
+                mListeningForTicks = true;
+                mDispatcher.addListener(this);
             }
-
-            unscheduleSelf(this);
-            final long upTime = SystemClock.uptimeMillis();
-            final long step = TICK_MS; /* tick every 200 ms */
-            scheduleSelf(this, upTime - ((upTime % step)) + step);
         }
 
         @Override
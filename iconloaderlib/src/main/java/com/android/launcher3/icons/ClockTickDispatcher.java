@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Single timer shared by all the visible clock icons. The time is computed once per tick, aligned
+ * with the wall clock, and dispatched to the listeners on the main thread. The timer is stopped
+ * while there are no listeners.
+ *
+ * Listeners are weakly referenced, so that icons which are dropped without being hidden don't
+ * keep the timer running.
+ */
+final class ClockTickDispatcher {
+
+    /**
+     * Listener for the clock ticks
+     */
+    interface TickListener {
+
+        /**
+         * Called on the main thread with the current {@param time}
+         */
+        void onTimeTick(@NonNull ClockTime time);
+    }
+
+    /**
+     * Immutable time of a clock tick, in the default time zone at the time of the tick
+     */
+    static final class ClockTime {
+
+        // Hour of the 12-hour clock, in [0, 12)
+        final int hour;
+        final int minute;
+        final int second;
+
+        private ClockTime(@NonNull Calendar calendar) {
+            hour = calendar.get(Calendar.HOUR);
+            minute = calendar.get(Calendar.MINUTE);
+            second = calendar.get(Calendar.SECOND);
+        }
+
+        /**
+         * Returns the current time in the default time zone
+         */
+        @NonNull
+        static ClockTime now() {
+            return new ClockTime(Calendar.getInstance());
+        }
+    }
+
+    private static final ClockTickDispatcher INSTANCE =
+            new ClockTickDispatcher(ClockDrawableWrapper.TICK_MS);
+
+    static ClockTickDispatcher getInstance() {
+        return INSTANCE;
+    }
+
+    private final long mTickMs;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mTickRunnable = this::onTick;
+
+    // Guarded by this object
+    private final ArrayList<WeakReference<TickListener>> mListeners = new ArrayList<>();
+    private final Calendar mCalendar = Calendar.getInstance();
+    @NonNull
+    private ClockTime mTime = new ClockTime(mCalendar);
+    private boolean mTicking;
+
+    // Listeners being notified, only used on the main thread
+    private final ArrayList<TickListener> mDispatching = new ArrayList<>();
+
+    private ClockTickDispatcher(long tickMs) {
+        mTickMs = tickMs;
+    }
+
+    /**
+     * Returns the time of the last tick, or the current time if the timer is stopped
+     */
+    @NonNull
+    synchronized ClockTime getTime() {
+        if (!mTicking) {
+            updateTimeLocked();
+        }
+        return mTime;
+    }
+
+    /**
+     * Adds the {@param listener}, starting the timer if needed
+     */
+    synchronized void addListener(@NonNull TickListener listener) {
+        for (int i = mListeners.size() - 1; i >= 0; i--) {
+            if (mListeners.get(i).get() == listener) {
+                return;
+            }
+        }
+        mListeners.add(new WeakReference<>(listener));
+        if (!mTicking) {
+            // The time wasn't updated while the timer was stopped
+            updateTimeLocked();
+            mTicking = true;
+            scheduleNextTick();
+        }
+    }
+
+    /**
+     * Removes the {@param listener}, the timer stops on the next tick if there are no listeners
+     */
+    synchronized void removeListener(@NonNull TickListener listener) {
+        for (int i = mListeners.size() - 1; i >= 0; i--) {
+            TickListener l = mListeners.get(i).get();
+            if (l == null || l == listener) {
+                mListeners.remove(i);
+            }
+        }
+    }
+
+    private void updateTimeLocked() {
+        // The default time zone changes without notice, for eg. when traveling
+        mCalendar.setTimeZone(TimeZone.getDefault());
+        mCalendar.setTimeInMillis(System.currentTimeMillis());
+        mTime = new ClockTime(mCalendar);
+    }
+
+    private void scheduleNextTick() {
+        long now = System.currentTimeMillis();
+        mHandler.postDelayed(mTickRunnable, mTickMs - (now % mTickMs));
+    }
+
+    private void onTick() {
+        ClockTime time;
+        synchronized (this) {
+            for (int i = mListeners.size() - 1; i >= 0; i--) {
+                TickListener l = mListeners.get(i).get();
+                if (l == null) {
+                    mListeners.remove(i);
+                } else {
+                    mDispatching.add(l);
+                }
+            }
+            if (mDispatching.isEmpty()) {
+                mTicking = false;
+                return;
+            }
+            updateTimeLocked();
+            time = mTime;
+            scheduleNextTick();
+        }
+
+        // Listeners are notified without the lock, so that they can add or remove listeners
+        for (int i = mDispatching.size() - 1; i >= 0; i--) {
+            mDispatching.get(i).onTimeTick(time);
+        }
+        mDispatching.clear();
+    }
+}
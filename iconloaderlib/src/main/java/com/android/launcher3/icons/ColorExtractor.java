@@ -16,8 +16,8 @@
 package com.android.launcher3.icons;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
-import android.util.SparseArray;
+import android.graphics.Bitmap.Config;
+
 import java.util.Arrays;
 
 /**
@@ -26,10 +26,16 @@ import java.util.Arrays;
 public class ColorExtractor {
 
     private final int NUM_SAMPLES = 20;
+
     private final float[] mTmpHsv = new float[3];
     private final float[] mTmpHueScoreHistogram = new float[360];
-    private final int[] mTmpPixels = new int[NUM_SAMPLES];
-    private final SparseArray<Float> mTmpRgbScores = new SparseArray<>();
+
+    // Buffers grown on demand and reused across calls
+    private int[] mTmpRow = new int[0];
+    private int[] mTmpSamples = new int[0];
+    private int[] mTmpPixels = new int[NUM_SAMPLES];
+    private int[] mTmpBucketKeys = new int[NUM_SAMPLES];
+    private float[] mTmpBucketScores = new float[NUM_SAMPLES];
 
     /**
      * This picks a dominant color, looking for high-saturation, high-value, repeated hues.
@@ -44,13 +50,70 @@ public class ColorExtractor {
      * @param bitmap The bitmap to scan
      */
     public int findDominantColorByHue(Bitmap bitmap, int samples) {
+        if (bitmap.getConfig() == Config.HARDWARE) {
+            // The pixels of hardware bitmaps can't be read directly
+            Bitmap copy = bitmap.copy(Config.ARGB_8888, false);
+            if (copy == null) {
+                return 0xff000000;
+            }
+            int color = findDominantColorByHue(copy, samples);
+            copy.recycle();
+            return color;
+        }
+
         final int height = bitmap.getHeight();
         final int width = bitmap.getWidth();
-        int sampleStride = (int) Math.sqrt((height * width) / samples);
-        if (sampleStride < 1) {
-            sampleStride = 1;
+        int sampleStride = getSampleStride(width, height, samples);
+
+        // Read each sampled row with a single call, and only keep the sampled pixels
+        if (mTmpRow.length < width) {
+            mTmpRow = new int[width];
         }
+        int[] sampled = ensureSamplesCapacity(width, height, sampleStride);
+        int count = 0;
+        for (int y = 0; y < height; y += sampleStride) {
+            bitmap.getPixels(mTmpRow, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x += sampleStride) {
+                sampled[count++] = mTmpRow[x];
+            }
+        }
+        return findDominantColorByHue(sampled, count, samples);
+    }
+
+    /**
+     * Same as {@link #findDominantColorByHue(Bitmap, int)}, for the unpremultiplied ARGB
+     * {@param pixels} of a {@param width} x {@param height} image.
+     */
+    public int findDominantColorByHue(int[] pixels, int width, int height, int samples) {
+        int sampleStride = getSampleStride(width, height, samples);
+        int[] sampled = ensureSamplesCapacity(width, height, sampleStride);
+        int count = 0;
+        for (int y = 0; y < height; y += sampleStride) {
+            int rowStart = y * width;
+            for (int x = 0; x < width; x += sampleStride) {
+                sampled[count++] = pixels[rowStart + x];
+            }
+        }
+        return findDominantColorByHue(sampled, count, samples);
+    }
+
+    private static int getSampleStride(int width, int height, int samples) {
+        return Math.max(1, (int) Math.sqrt((height * width) / samples));
+    }
+
+    private int[] ensureSamplesCapacity(int width, int height, int sampleStride) {
+        int capacity = ((width + sampleStride - 1) / sampleStride)
+                * ((height + sampleStride - 1) / sampleStride);
+        if (mTmpSamples.length < capacity) {
+            mTmpSamples = new int[capacity];
+        }
+        return mTmpSamples;
+    }
 
+    /**
+     * Picks the dominant color of the first {@param count} pixels of {@param sampled}
+     */
+    private int findDominantColorByHue(int[] sampled, int count, int samples) {
         // This is an out-param, for getting the hsv values for an rgb
         float[] hsv = mTmpHsv;
         Arrays.fill(hsv, 0);
@@ -62,41 +125,46 @@ public class ColorExtractor {
         float highScore = -1;
         int bestHue = -1;
 
+        if (mTmpPixels.length < samples) {
+            mTmpPixels = new int[samples];
+            mTmpBucketKeys = new int[samples];
+            mTmpBucketScores = new float[samples];
+        }
         int[] pixels = mTmpPixels;
-        Arrays.fill(pixels, 0);
         int pixelCount = 0;
 
-        for (int y = 0; y < height; y += sampleStride) {
-            for (int x = 0; x < width; x += sampleStride) {
-                int argb = bitmap.getPixel(x, y);
-                int alpha = 0xFF & (argb >> 24);
-                if (alpha < 0x80) {
-                    // Drop mostly-transparent pixels.
-                    continue;
-                }
-                // Remove the alpha channel.
-                int rgb = argb | 0xFF000000;
-                Color.colorToHSV(rgb, hsv);
-                // Bucket colors by the 360 integer hues.
-                int hue = (int) hsv[0];
-                if (hue < 0 || hue >= hueScoreHistogram.length) {
-                    // Defensively avoid array bounds violations.
-                    continue;
-                }
-                if (pixelCount < samples) {
-                    pixels[pixelCount++] = rgb;
-                }
-                float score = hsv[1] * hsv[2];
-                hueScoreHistogram[hue] += score;
-                if (hueScoreHistogram[hue] > highScore) {
-                    highScore = hueScoreHistogram[hue];
-                    bestHue = hue;
-                }
+        for (int i = 0; i < count; i++) {
+            int argb = sampled[i];
+            int alpha = 0xFF & (argb >> 24);
+            if (alpha < 0x80) {
+                // Drop mostly-transparent pixels.
+                continue;
+            }
+            // Remove the alpha channel.
+            int rgb = argb | 0xFF000000;
+            rgbToHsv(rgb, hsv);
+            // Bucket colors by the 360 integer hues.
+            int hue = (int) hsv[0];
+            if (hue < 0 || hue >= hueScoreHistogram.length) {
+                // Defensively avoid array bounds violations.
+                continue;
+            }
+            if (pixelCount < samples) {
+                pixels[pixelCount++] = rgb;
+            }
+            float score = hsv[1] * hsv[2];
+            hueScoreHistogram[hue] += score;
+            if (hueScoreHistogram[hue] > highScore) {
+                highScore = hueScoreHistogram[hue];
+                bestHue = hue;
             }
         }
 
-        SparseArray<Float> rgbScores = mTmpRgbScores;
-        rgbScores.clear();
+        // Scores of the [s,v] buckets, stored as a small list since there are at most
+        // pixelCount buckets
+        int[] bucketKeys = mTmpBucketKeys;
+        float[] bucketScores = mTmpBucketScores;
+        int bucketCount = 0;
         int bestColor = 0xff000000;
         highScore = -1;
         // Go back over the RGB colors that match the winning hue,
@@ -104,7 +172,7 @@ public class ColorExtractor {
         // The highest-scoring RGB color wins.
         for (int i = 0; i < pixelCount; i++) {
             int rgb = pixels[i];
-            Color.colorToHSV(rgb, hsv);
+            rgbToHsv(rgb, hsv);
             int hue = (int) hsv[0];
             if (hue == bestHue) {
                 float s = hsv[1];
@@ -112,9 +180,18 @@ public class ColorExtractor {
                 int bucket = (int) (s * 100) + (int) (v * 10000);
                 // Score by cumulative saturation * value.
                 float score = s * v;
-                Float oldTotal = rgbScores.get(bucket);
-                float newTotal = oldTotal == null ? score : oldTotal + score;
-                rgbScores.put(bucket, newTotal);
+
+                int index = 0;
+                while (index < bucketCount && bucketKeys[index] != bucket) {
+                    index++;
+                }
+                if (index == bucketCount) {
+                    bucketKeys[index] = bucket;
+                    bucketScores[index] = 0;
+                    bucketCount++;
+                }
+                float newTotal = bucketScores[index] + score;
+                bucketScores[index] = newTotal;
                 if (newTotal > highScore) {
                     highScore = newTotal;
                     // All the colors in the winning bucket are very similar. Last in wins.
@@ -124,4 +201,38 @@ public class ColorExtractor {
         }
         return bestColor;
     }
+
+    /**
+     * Same as {@link android.graphics.Color#colorToHSV}, without going through JNI
+     */
+    private static void rgbToHsv(int rgb, float[] outHsv) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+        int delta = max - min;
+
+        outHsv[2] = max / 255f;
+        if (max == 0 || delta == 0) {
+            outHsv[0] = 0;
+            outHsv[1] = 0;
+            return;
+        }
+        outHsv[1] = (float) delta / max;
+
+        float h;
+        if (r == max) {
+            h = (float) (g - b) / delta;
+        } else if (g == max) {
+            h = 2 + (float) (b - r) / delta;
+        } else {
+            h = 4 + (float) (r - g) / delta;
+        }
+        h *= 60;
+        if (h < 0) {
+            h += 360;
+        }
+        outHsv[0] = h;
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons;
+
+import android.graphics.ColorFilter;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffColorFilter;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Process-wide cache of the immutable color filters used by the icon drawables, so that the
+ * drawables and their animations can share them instead of creating new ones on every update.
+ */
+final class ColorFilterCache {
+
+    // Number of slots of the tint filter table, must be a power of 2
+    private static final int TINT_FILTER_SLOTS = 512;
+
+    // Direct-mapped table of the tint filters, read without a lock as it is queried on every
+    // frame of the icon animations. A slot is overwritten when another filter maps to it, which
+    // is cheap as the filters are recreated on demand.
+    private static final AtomicReferenceArray<TintFilter> sTintFilters =
+            new AtomicReferenceArray<>(TINT_FILTER_SLOTS);
+    // Filters keyed by the raw bits of the disabled alpha. Guarded by the class.
+    private static final SparseArray<ColorFilter> sDisabledFilters = new SparseArray<>();
+
+    private ColorFilterCache() { }
+
+    /**
+     * Returns a {@link PorterDuffColorFilter} for {@param color} and {@param mode}
+     */
+    @NonNull
+    static ColorFilter getTintFilter(int color, @NonNull PorterDuff.Mode mode) {
+        int hash = 31 * color + mode.ordinal();
+        int slot = (hash ^ (hash >>> 16)) & (TINT_FILTER_SLOTS - 1);
+        TintFilter entry = sTintFilters.get(slot);
+        if (entry == null || entry.color != color || entry.mode != mode) {
+            entry = new TintFilter(color, mode);
+            sTintFilters.set(slot, entry);
+        }
+        return entry.filter;
+    }
+
+    /**
+     * Returns the filter for disabled icons, with {@param disabledAlpha}
+     */
+    @NonNull
+    static synchronized ColorFilter getDisabledFilter(float disabledAlpha) {
+        int key = Float.floatToIntBits(disabledAlpha);
+        ColorFilter filter = sDisabledFilters.get(key);
+        if (filter == null) {
+            filter = FastBitmapDrawable.createDisabledColorFilter(disabledAlpha);
+            sDisabledFilters.put(key, filter);
+        }
+        return filter;
+    }
+
+    /**
+     * Tint filter with the color and mode it was created with, which the filter doesn't expose
+     */
+    private static final class TintFilter {
+
+        final int color;
+        final PorterDuff.Mode mode;
+        final ColorFilter filter;
+
+        TintFilter(int color, @NonNull PorterDuff.Mode mode) {
+            this.color = color;
+            this.mode = mode;
+            this.filter = new PorterDuffColorFilter(color, mode);
+        }
+    }
+}
@@ -51,7 +51,50 @@ public class DotRenderer {
     private final float[] mLeftDotPosition;
 
     private static final int MIN_DOT_SIZE = 1;
+    // Size of the system icon shape used to position the dots
+    private static final int SHAPE_PATH_SIZE = 100;
+
+    /**
+     * Creates a renderer positioning the dots on the system icon shape
+     */
+    public DotRenderer(int iconSizePx) {
+        this(iconSizePx, IconShape.get(SHAPE_PATH_SIZE));
+    }
+
+    private DotRenderer(int iconSizePx, IconShape shape) {
+        this(iconSizePx, shape.getLeftDotPosition(), shape.getRightDotPosition());
+    }
+
+    /**
+     * Creates a renderer positioning the dots on {@param iconShapePath}, in [0, pathSize] bounds.
+     * The positions are computed for every renderer, unless the path is the shared path of
+     * {@link IconShape}.
+     * @deprecated use {@link #DotRenderer(int)} for the system icon shape, which reuses the
+     * positions precomputed for the process
+     */
+    @Deprecated
     public DotRenderer(int iconSizePx, Path iconShapePath, int pathSize) {
+        this(iconSizePx, getShapeOrNull(iconShapePath, pathSize), iconShapePath, pathSize);
+    }
+
+    private DotRenderer(int iconSizePx, IconShape shape, Path iconShapePath, int pathSize) {
+        // Find the points on the path that are closest to the top left and right corners.
+        this(iconSizePx,
+                shape != null
+                        ? shape.getLeftDotPosition() : getPathPoint(iconShapePath, pathSize, -1),
+                shape != null
+                        ? shape.getRightDotPosition() : getPathPoint(iconShapePath, pathSize, 1));
+    }
+
+    /**
+     * Returns the shared {@link IconShape} whose path is {@param path}, or null
+     */
+    private static IconShape getShapeOrNull(Path path, int pathSize) {
+        IconShape shape = IconShape.get(pathSize);
+        return shape.getPath() == path ? shape : null;
+    }
+
+    private DotRenderer(int iconSizePx, float[] leftDotPosition, float[] rightDotPosition) {
         int size = Math.round(SIZE_PERCENTAGE * iconSizePx);
         if (size <= 0) {
             size = MIN_DOT_SIZE;
@@ -63,12 +106,16 @@ public class DotRenderer {
 
         mBitmapOffset = -mBackgroundWithShadow.getHeight() * 0.5f; // Same as width.
 
-        // Find the points on the path that are closest to the top left and right corners.
-        mLeftDotPosition = getPathPoint(iconShapePath, pathSize, -1);
-        mRightDotPosition = getPathPoint(iconShapePath, pathSize, 1);
+        mLeftDotPosition = leftDotPosition;
+        mRightDotPosition = rightDotPosition;
     }
 
-    private static float[] getPathPoint(Path path, float size, float direction) {
+    /**
+     * Returns the point of {@param path} closest to the top left or right corner, as a fraction
+     * of {@param size}
+     * @param direction -1 for the left corner and 1 for the right corner
+     */
+    static float[] getPathPoint(Path path, float size, float direction) {
         float halfSize = size / 2;
         // Small delta so that we don't get a zero size triangle
         float delta = 1;
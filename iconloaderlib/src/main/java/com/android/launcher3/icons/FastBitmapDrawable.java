@@ -46,8 +46,6 @@ public class FastBitmapDrawable extends Drawable {
 
     public static final int CLICK_FEEDBACK_DURATION = 200;
 
-    private static ColorFilter sDisabledFColorFilter;
-
     protected final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
     protected Bitmap mBitmap;
     protected final int mIconColor;
@@ -251,18 +249,12 @@ public class FastBitmapDrawable extends Drawable {
         return mIsDisabled;
     }
 
-    private ColorFilter getDisabledColorFilter() {
-        if (sDisabledFColorFilter == null) {
-            sDisabledFColorFilter = getDisabledFColorFilter(mDisabledAlpha);
-        }
-        return sDisabledFColorFilter;
-    }
-
     /**
      * Updates the paint to reflect the current brightness and saturation.
      */
     protected void updateFilter() {
-        mPaint.setColorFilter(mIsDisabled ? getDisabledColorFilter() : mColorFilter);
+        mPaint.setColorFilter(mIsDisabled
+                ? ColorFilterCache.getDisabledFilter(mDisabledAlpha) : mColorFilter);
         invalidateSelf();
     }
 
@@ -271,7 +263,14 @@ public class FastBitmapDrawable extends Drawable {
         return new FastBitmapConstantState(mBitmap, mIconColor, mIsDisabled);
     }
 
+    /**
+     * Returns the shared filter for disabled icons, with {@param disabledAlpha}
+     */
     public static ColorFilter getDisabledFColorFilter(float disabledAlpha) {
+        return ColorFilterCache.getDisabledFilter(disabledAlpha);
+    }
+
+    static ColorFilter createDisabledColorFilter(float disabledAlpha) {
         ColorMatrix tempBrightnessMatrix = new ColorMatrix();
         ColorMatrix tempFilterMatrix = new ColorMatrix();
 
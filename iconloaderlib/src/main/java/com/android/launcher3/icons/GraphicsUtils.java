@@ -18,13 +18,10 @@ package com.android.launcher3.icons;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.graphics.Path;
 import android.graphics.Rect;
 import android.graphics.Region;
 import android.graphics.RegionIterator;
-import android.graphics.drawable.AdaptiveIconDrawable;
-import android.graphics.drawable.ColorDrawable;
 import android.util.Log;
 
 import androidx.annotation.ColorInt;
@@ -99,10 +96,7 @@ public class GraphicsUtils {
      * Returns the default path to be used by an icon
      */
     public static Path getShapePath(int size) {
-        AdaptiveIconDrawable drawable = new AdaptiveIconDrawable(
-                new ColorDrawable(Color.BLACK), new ColorDrawable(Color.BLACK));
-        drawable.setBounds(0, 0, size, size);
-        return new Path(drawable.getIconMask());
+        return new Path(IconShape.get(size).getPath());
     }
 
     /**
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool of {@link BaseIconFactory}, so that multiple threads can render icons at the
+ * same time without sharing a factory. Factories are returned to the pool when they are closed:
+ * <pre>
+ *     try (T factory = pool.acquire()) {
+ *         ...
+ *     }
+ * </pre>
+ * When all the factories are in use, {@link #acquire()} blocks until one is released. A thread
+ * which already holds a factory never blocks, and gets a temporary factory instead, which is
+ * discarded when it is closed.
+ */
+public class IconFactoryPool<T extends BaseIconFactory> {
+
+    private final int mMaxSize;
+    private final Supplier<T> mFactorySupplier;
+
+    // All the fields below are guarded by this object
+    private final ArrayDeque<T> mIdle = new ArrayDeque<>();
+    private final ArrayList<BaseIconFactory> mInUse = new ArrayList<>();
+    // Temporary factories created for nested use, which are not counted in mCreatedCount
+    private final ArrayList<BaseIconFactory> mTemporaryInUse = new ArrayList<>();
+    private int mCreatedCount;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mWaitCount;
+    private long mWaitTimeNanos;
+
+    /**
+     * @param maxSize maximum number of factories retained by the pool
+     * @param factorySupplier creates a new factory when the pool is empty
+     */
+    public IconFactoryPool(int maxSize, @NonNull Supplier<T> factorySupplier) {
+        mMaxSize = Math.max(1, maxSize);
+        mFactorySupplier = factorySupplier;
+    }
+
+    /**
+     * Returns a factory for exclusive use by the calling thread, until it is closed
+     */
+    @NonNull
+    public T acquire() {
+        Thread thread = Thread.currentThread();
+        final boolean temporary;
+        synchronized (this) {
+            T factory = mIdle.pollFirst();
+            if (factory != null) {
+                mHitCount++;
+                return onAcquired(factory, thread);
+            }
+            temporary = mCreatedCount >= mMaxSize && isHeldBy(thread);
+            if (!temporary && mCreatedCount >= mMaxSize) {
+                factory = waitForFactory(thread);
+                if (factory != null) {
+                    return onAcquired(factory, thread);
+                }
+                // A factory failed to be created, let this thread create one instead
+            }
+            mMissCount++;
+            if (!temporary) {
+                mCreatedCount++;
+            }
+        }
+
+        // Create the factory outside the lock, as it loads resources
+        T factory;
+        try {
+            factory = mFactorySupplier.get();
+        } catch (RuntimeException e) {
+            if (!temporary) {
+                synchronized (this) {
+                    mCreatedCount--;
+                    notifyAll();
+                }
+            }
+            throw e;
+        }
+        synchronized (this) {
+            factory.mPool = this;
+            if (temporary) {
+                factory.mPoolOwner = thread;
+                mTemporaryInUse.add(factory);
+                return factory;
+            }
+            return onAcquired(factory, thread);
+        }
+    }
+
+    /**
+     * Waits until a factory is released or a factory can be created
+     * @return the released factory, or null if a factory can be created
+     */
+    @Nullable
+    private T waitForFactory(Thread thread) {
+        mWaitCount++;
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        boolean interrupted = false;
+        while (mIdle.isEmpty() && mCreatedCount >= mMaxSize) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // The factory must still be returned, restore the interrupt afterwards
+                interrupted = true;
+            }
+        }
+        mWaitTimeNanos += SystemClock.elapsedRealtimeNanos() - startTime;
+        if (interrupted) {
+            thread.interrupt();
+        }
+
+        return mIdle.pollFirst();
+    }
+
+    private T onAcquired(T factory, Thread thread) {
+        factory.mPoolOwner = thread;
+        mInUse.add(factory);
+        return factory;
+    }
+
+    private boolean isHeldBy(Thread thread) {
+        for (int i = mInUse.size() - 1; i >= 0; i--) {
+            if (mInUse.get(i).mPoolOwner == thread) {
+                return true;
+            }
+        }
+        for (int i = mTemporaryInUse.size() - 1; i >= 0; i--) {
+            if (mTemporaryInUse.get(i).mPoolOwner == thread) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@param factory} to the pool. Called when the factory is closed.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void release(BaseIconFactory factory) {
+        if (mTemporaryInUse.remove(factory)) {
+            // Discard the temporary factories created for nested use
+            factory.mPoolOwner = null;
+            factory.mPool = null;
+        } else if (mInUse.remove(factory)) {
+            factory.mPoolOwner = null;
+            mIdle.addFirst((T) factory);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of acquisitions which reused an idle factory
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of acquisitions which created a new factory
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the number of acquisitions which waited for a factory to be released
+     */
+    public synchronized long getWaitCount() {
+        return mWaitCount;
+    }
+
+    /**
+     * Returns the total time spent waiting for a factory to be released
+     */
+    public synchronized long getWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mWaitTimeNanos);
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "IconFactoryPool:"
+                + " size=" + mCreatedCount + "/" + mMaxSize
+                + " inUse=" + mInUse.size()
+                + " temporary=" + mTemporaryInUse.size()
+                + " hits=" + mHitCount
+                + " misses=" + mMissCount
+                + " waits=" + mWaitCount
+                + " waitTimeMs=" + getWaitTimeMillis());
+    }
+}
@@ -29,7 +29,6 @@ import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
-import android.graphics.Region;
 import android.graphics.drawable.AdaptiveIconDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
@@ -57,6 +56,14 @@ public class IconNormalizer {
 
     private static final int MIN_VISIBLE_ALPHA = 40;
 
+    // Constants used to check 8 alpha values at a time. Adding VISIBLE_ALPHA_OFFSET to the low
+    // 7 bits of a byte sets its high bit if the byte is above MIN_VISIBLE_ALPHA, without carrying
+    // over to the next byte.
+    private static final long BYTES_HIGH_BITS = 0x8080808080808080L;
+    private static final long BYTES_LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long VISIBLE_ALPHA_OFFSET =
+            0x0101010101010101L * (0x7F - MIN_VISIBLE_ALPHA);
+
     // Shape detection related constants
     private static final float BOUND_RATIO_MARGIN = .05f;
     private static final float PIXEL_DIFF_PERCENTAGE_THRESHOLD = 0.005f;
@@ -70,10 +77,12 @@ public class IconNormalizer {
     private final Canvas mCanvas;
     private final Paint mPaintMaskShape;
     private final Paint mPaintMaskShapeOutline;
-    private final byte[] mPixels;
+    private final ByteBuffer mPixels;
 
     private final RectF mAdaptiveIconBounds;
     private float mAdaptiveIconScale;
+    @Nullable
+    private IconShape mAdaptiveIconShape;
 
     private boolean mEnableShapeDetection;
 
@@ -90,7 +99,7 @@ public class IconNormalizer {
         mMaxSize = iconBitmapSize * 2;
         mBitmap = Bitmap.createBitmap(mMaxSize, mMaxSize, Bitmap.Config.ALPHA_8);
         mCanvas = new Canvas(mBitmap);
-        mPixels = new byte[mMaxSize * mMaxSize];
+        mPixels = ByteBuffer.wrap(new byte[mMaxSize * mMaxSize]);
         mLeftBorder = new float[mMaxSize];
         mRightBorder = new float[mMaxSize];
         mBounds = new Rect();
@@ -129,20 +138,18 @@ public class IconNormalizer {
     }
 
     /**
-     * @param d Should be AdaptiveIconDrawable
+     * @param d Should be AdaptiveIconDrawable, using the system mask
      * @param size Canvas size to use
      */
     @TargetApi(Build.VERSION_CODES.O)
     public static float normalizeAdaptiveIcon(Drawable d, int size, @Nullable RectF outBounds) {
-        Rect tmpBounds = new Rect(d.getBounds());
-        d.setBounds(0, 0, size, size);
-
-        Path path = ((AdaptiveIconDrawable) d).getIconMask();
-        Region region = new Region();
-        region.setPath(path, new Region(0, 0, size, size));
+        return normalizeAdaptiveIcon(IconShape.get(size), outBounds);
+    }
 
-        Rect hullBounds = region.getBounds();
-        int hullArea = GraphicsUtils.getArea(region);
+    private static float normalizeAdaptiveIcon(IconShape shape, @Nullable RectF outBounds) {
+        int size = shape.getSize();
+        Rect hullBounds = shape.getHullBounds();
+        int hullArea = shape.getArea();
 
         if (outBounds != null) {
             float sizeF = size;
@@ -152,7 +159,6 @@ public class IconNormalizer {
                     1 - (hullBounds.right / sizeF),
                     1 - (hullBounds.bottom / sizeF));
         }
-        d.setBounds(tmpBounds);
         return getScale(hullArea, hullArea, size * size);
     }
 
@@ -196,26 +202,13 @@ public class IconNormalizer {
      * Used to determine if certain the bitmap is transparent.
      */
     private boolean isTransparentBitmap() {
-        ByteBuffer buffer = ByteBuffer.wrap(mPixels);
-        buffer.rewind();
-        mBitmap.copyPixelsToBuffer(buffer);
-
-        int y = mBounds.top;
-        // buffer position
-        int index = y * mMaxSize;
-        // buffer shift after every row, width of buffer = mMaxSize
-        int rowSizeDiff = mMaxSize - mBounds.right;
+        copyPixels();
+        int stride = mBitmap.getRowBytes();
 
         int sum = 0;
-        for (; y < mBounds.bottom; y++) {
-            index += mBounds.left;
-            for (int x = mBounds.left; x < mBounds.right; x++) {
-                if ((mPixels[index] & 0xFF) > MIN_VISIBLE_ALPHA) {
-                    sum++;
-                }
-                index++;
-            }
-            index += rowSizeDiff;
+        for (int y = mBounds.top; y < mBounds.bottom; y++) {
+            int rowStart = y * stride;
+            sum += countVisiblePixels(mPixels, rowStart + mBounds.left, rowStart + mBounds.right);
         }
 
         float percentageDiffPixels = ((float) sum) / (mBounds.width() * mBounds.height());
@@ -239,8 +232,11 @@ public class IconNormalizer {
     public synchronized float getScale(@NonNull Drawable d, @Nullable RectF outBounds,
             @Nullable Path path, @Nullable boolean[] outMaskShape) {
         if (BaseIconFactory.ATLEAST_OREO && d instanceof AdaptiveIconDrawable) {
-            if (mAdaptiveIconScale == SCALE_NOT_INITIALIZED) {
-                mAdaptiveIconScale = normalizeAdaptiveIcon(d, mMaxSize, mAdaptiveIconBounds);
+            // The shape changes along with the system mask
+            IconShape shape = IconShape.get(mMaxSize);
+            if (mAdaptiveIconScale == SCALE_NOT_INITIALIZED || shape != mAdaptiveIconShape) {
+                mAdaptiveIconScale = normalizeAdaptiveIcon(shape, mAdaptiveIconBounds);
+                mAdaptiveIconShape = shape;
             }
             if (outBounds != null) {
                 outBounds.set(mAdaptiveIconBounds);
@@ -257,57 +253,42 @@ public class IconNormalizer {
             width = mMaxSize * width / max;
             height = mMaxSize * height / max;
         }
+        if (width <= 0 || height <= 0) {
+            // Nothing can be drawn. Do not scale.
+            return 1;
+        }
 
+        // Shrink the bitmap to the drawn area, so that only this area is erased and copied
+        if (mBitmap.getWidth() != width || mBitmap.getHeight() != height) {
+            mCanvas.setBitmap(null);
+            mBitmap.reconfigure(width, height, Bitmap.Config.ALPHA_8);
+            mCanvas.setBitmap(mBitmap);
+        }
         mBitmap.eraseColor(Color.TRANSPARENT);
         d.setBounds(0, 0, width, height);
         d.draw(mCanvas);
+        copyPixels();
 
-        ByteBuffer buffer = ByteBuffer.wrap(mPixels);
-        buffer.rewind();
-        mBitmap.copyPixelsToBuffer(buffer);
+        // Create border by going through all pixels one row at a time and for each row find
+        // the first and the last non-transparent pixel. Set those values to mLeftBorder and
+        // mRightBorder and use -1 if there are no visible pixel in the row.
+        findRowBorders(mPixels, mBitmap.getRowBytes(), width, height, mLeftBorder, mRightBorder);
 
         // Overall bounds of the visible icon.
         int topY = -1;
         int bottomY = -1;
         int leftX = mMaxSize + 1;
         int rightX = -1;
-
-        // Create border by going through all pixels one row at a time and for each row find
-        // the first and the last non-transparent pixel. Set those values to mLeftBorder and
-        // mRightBorder and use -1 if there are no visible pixel in the row.
-
-        // buffer position
-        int index = 0;
-        // buffer shift after every row, width of buffer = mMaxSize
-        int rowSizeDiff = mMaxSize - width;
-        // first and last position for any row.
-        int firstX, lastX;
-
         for (int y = 0; y < height; y++) {
-            firstX = lastX = -1;
-            for (int x = 0; x < width; x++) {
-                if ((mPixels[index] & 0xFF) > MIN_VISIBLE_ALPHA) {
-                    if (firstX == -1) {
-                        firstX = x;
-                    }
-                    lastX = x;
-                }
-                index++;
-            }
-            index += rowSizeDiff;
-
-            mLeftBorder[y] = firstX;
-            mRightBorder[y] = lastX;
-
             // If there is at least one visible pixel, update the overall bounds.
-            if (firstX != -1) {
+            if (mLeftBorder[y] != -1) {
                 bottomY = y;
                 if (topY == -1) {
                     topY = y;
                 }
 
-                leftX = Math.min(leftX, firstX);
-                rightX = Math.max(rightX, lastX);
+                leftX = Math.min(leftX, (int) mLeftBorder[y]);
+                rightX = Math.max(rightX, (int) mRightBorder[y]);
             }
         }
 
@@ -347,6 +328,94 @@ public class IconNormalizer {
         return getScale(area, rectArea, width * height);
     }
 
+    private void copyPixels() {
+        mPixels.rewind();
+        mBitmap.copyPixelsToBuffer(mPixels);
+    }
+
+    /**
+     * Finds the first and the last visible pixel of each row of the ALPHA_8 {@param pixels},
+     * or -1 for rows without any visible pixel. Transparent pixels are skipped 8 at a time, and
+     * each row is scanned from both ends, stopping at the first visible pixel.
+     *
+     * @param stride number of bytes between the start of two rows
+     */
+    static void findRowBorders(ByteBuffer pixels, int stride, int width, int height,
+            float[] outLeftBorder, float[] outRightBorder) {
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * stride;
+            int rowEnd = rowStart + width;
+            int first = findFirstVisiblePixel(pixels, rowStart, rowEnd);
+            if (first == -1) {
+                outLeftBorder[y] = outRightBorder[y] = -1;
+            } else {
+                outLeftBorder[y] = first - rowStart;
+                outRightBorder[y] = findLastVisiblePixel(pixels, first, rowEnd) - rowStart;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the first visible pixel in [start, end), or -1 if there is none
+     */
+    private static int findFirstVisiblePixel(ByteBuffer pixels, int start, int end) {
+        int i = start;
+        while (i + Long.BYTES <= end && !hasVisiblePixel(pixels.getLong(i))) {
+            i += Long.BYTES;
+        }
+        for (; i < end; i++) {
+            if ((pixels.get(i) & 0xFF) > MIN_VISIBLE_ALPHA) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the last visible pixel in [first, end), where the pixel at
+     * {@param first} is known to be visible
+     */
+    private static int findLastVisiblePixel(ByteBuffer pixels, int first, int end) {
+        int i = end;
+        while (i - Long.BYTES > first && !hasVisiblePixel(pixels.getLong(i - Long.BYTES))) {
+            i -= Long.BYTES;
+        }
+        for (i--; i > first; i--) {
+            if ((pixels.get(i) & 0xFF) > MIN_VISIBLE_ALPHA) {
+                return i;
+            }
+        }
+        return first;
+    }
+
+    private static int countVisiblePixels(ByteBuffer pixels, int start, int end) {
+        int count = 0;
+        int i = start;
+        for (; i + Long.BYTES <= end; i += Long.BYTES) {
+            if (!hasVisiblePixel(pixels.getLong(i))) {
+                continue;
+            }
+            for (int j = i; j < i + Long.BYTES; j++) {
+                if ((pixels.get(j) & 0xFF) > MIN_VISIBLE_ALPHA) {
+                    count++;
+                }
+            }
+        }
+        for (; i < end; i++) {
+            if ((pixels.get(i) & 0xFF) > MIN_VISIBLE_ALPHA) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if any of the 8 alpha values packed in {@param word} is visible
+     */
+    private static boolean hasVisiblePixel(long word) {
+        return ((((word & BYTES_LOW_BITS) + VISIBLE_ALPHA_OFFSET) | word) & BYTES_HIGH_BITS) != 0;
+    }
+
     /**
      * Modifies {@param xCoordinates} to represent a convex border. Fills in all missing values
      * (except on either ends) with appropriate values.
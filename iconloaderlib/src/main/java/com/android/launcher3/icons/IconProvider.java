@@ -347,6 +347,7 @@ public class IconProvider {
                     String newState = getSystemIconState();
                     if (!mIconState.equals(newState)) {
                         mIconState = newState;
+                        IconShape.invalidate();
                         mCallback.onSystemIconStateChanged(mIconState);
                     }
                     break;
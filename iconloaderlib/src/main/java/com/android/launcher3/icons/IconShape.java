@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons;
+
+import android.graphics.Color;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.Region;
+import android.graphics.drawable.AdaptiveIconDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Geometry of the system adaptive icon mask at a given size, computed once and shared by the
+ * whole process. The shapes are discarded when the system icon state changes, see
+ * {@link IconProvider#registerIconChangeListener}.
+ */
+public final class IconShape {
+
+    // Shapes of the current mask, per size. Guarded by the class.
+    private static final SparseArray<IconShape> sShapes = new SparseArray<>();
+
+    /**
+     * Returns the shape of the current system mask at {@param size}. Can be called from any
+     * thread.
+     */
+    @NonNull
+    public static IconShape get(int size) {
+        synchronized (IconShape.class) {
+            IconShape shape = sShapes.get(size);
+            if (shape == null) {
+                shape = new IconShape(size);
+                sShapes.put(size, shape);
+            }
+            return shape;
+        }
+    }
+
+    /**
+     * Discards all the shapes, for eg. when the system mask changes
+     */
+    public static void invalidate() {
+        synchronized (IconShape.class) {
+            sShapes.clear();
+        }
+    }
+
+    private final int mSize;
+    private final Path mPath;
+    private final Rect mHullBounds;
+    private final int mArea;
+
+    // Center of the notification dots as a fraction of the size, computed on first use.
+    // Guarded by this object.
+    private float[] mLeftDotPosition;
+    private float[] mRightDotPosition;
+
+    private IconShape(int size) {
+        AdaptiveIconDrawable drawable = new AdaptiveIconDrawable(
+                new ColorDrawable(Color.BLACK), new ColorDrawable(Color.BLACK));
+        drawable.setBounds(0, 0, size, size);
+        mSize = size;
+        mPath = new Path(drawable.getIconMask());
+
+        Region region = new Region();
+        region.setPath(mPath, new Region(0, 0, size, size));
+        mHullBounds = region.getBounds();
+        mArea = GraphicsUtils.getArea(region);
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns the mask path in [0, size] bounds. The path is shared and must not be modified.
+     */
+    @NonNull
+    public Path getPath() {
+        return mPath;
+    }
+
+    /**
+     * Returns the bounds of the area covered by the mask
+     */
+    @NonNull
+    public Rect getHullBounds() {
+        return new Rect(mHullBounds);
+    }
+
+    /**
+     * Returns the number of pixels covered by the mask
+     */
+    public int getArea() {
+        return mArea;
+    }
+
+    /**
+     * Returns the point of the mask closest to the top left corner, as a fraction of the size
+     */
+    @NonNull
+    public synchronized float[] getLeftDotPosition() {
+        if (mLeftDotPosition == null) {
+            mLeftDotPosition = DotRenderer.getPathPoint(mPath, mSize, -1);
+        }
+        return mLeftDotPosition.clone();
+    }
+
+    /**
+     * Returns the point of the mask closest to the top right corner, as a fraction of the size
+     */
+    @NonNull
+    public synchronized float[] getRightDotPosition() {
+        if (mRightDotPosition == null) {
+            mRightDotPosition = DotRenderer.getPathPoint(mPath, mSize, 1);
+        }
+        return mRightDotPosition.clone();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons;
+
+import android.graphics.RectF;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Cache of the results of {@link IconNormalizer#getScale}, for icons identified by the resource
+ * they are loaded from. The results for a given resource never change, so they can be kept
+ * across renders, for eg. after a locale or theme change.
+ *
+ * Implementations can be called from multiple threads.
+ */
+public interface NormalizationCache {
+
+    /**
+     * Returns the result previously stored for {@param key}, or null
+     */
+    @Nullable
+    Result get(@NonNull Key key);
+
+    void put(@NonNull Key key, @NonNull Result result);
+
+    /**
+     * Identity of a normalized icon
+     */
+    final class Key {
+
+        public final String packageName;
+        public final long versionCode;
+        public final int resId;
+        public final int density;
+        // Hash of the mask used for shape detection, or 0 if the icon is not compared to a mask
+        public final int shapeHash;
+
+        public Key(@NonNull String packageName, long versionCode, int resId, int density,
+                int shapeHash) {
+            this.packageName = packageName;
+            this.versionCode = versionCode;
+            this.resId = resId;
+            this.density = density;
+            this.shapeHash = shapeHash;
+        }
+    }
+
+    /**
+     * Result of the normalization of an icon
+     */
+    final class Result {
+
+        public final float scale;
+        // Fraction distance of the visible icon from each edge
+        public final RectF bounds;
+        // Whether the icon has the same shape as the mask
+        public final boolean isShape;
+
+        public Result(float scale, @NonNull RectF bounds, boolean isShape) {
+            this.scale = scale;
+            this.bounds = bounds;
+            this.isShape = isShape;
+        }
+    }
+}
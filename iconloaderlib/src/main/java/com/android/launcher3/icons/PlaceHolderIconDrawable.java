@@ -23,10 +23,10 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Path;
 import android.graphics.PorterDuff;
-import android.graphics.PorterDuffColorFilter;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 
+import androidx.annotation.VisibleForTesting;
 import androidx.core.graphics.ColorUtils;
 
 import com.android.launcher3.R;
@@ -36,13 +36,13 @@ import com.android.launcher3.R;
  */
 public class PlaceHolderIconDrawable extends FastBitmapDrawable {
 
-    // Path in [0, 100] bounds.
+    // Path in [0, 100] bounds, shared with the other placeholders.
     private final Path mProgressPath;
 
     public PlaceHolderIconDrawable(BitmapInfo info, Context context) {
         super(info);
 
-        mProgressPath = GraphicsUtils.getShapePath(100);
+        mProgressPath = IconShape.get(100).getPath();
         mPaint.setColor(ColorUtils.compositeColors(
                 GraphicsUtils.getAttrColor(context, R.attr.loadingIconColor), info.color));
     }
@@ -58,16 +58,29 @@ public class PlaceHolderIconDrawable extends FastBitmapDrawable {
 
     /** Updates this placeholder to {@code newIcon} with animation. */
     public void animateIconUpdate(Drawable newIcon) {
+        createIconUpdateAnimation(newIcon).start();
+    }
+
+    /**
+     * Returns the animation fading {@code newIcon} from the placeholder color, which doesn't
+     * allocate on its frames
+     */
+    @VisibleForTesting
+    ValueAnimator createIconUpdateAnimation(Drawable newIcon) {
         int placeholderColor = mPaint.getColor();
         int originalAlpha = Color.alpha(placeholderColor);
 
-        ValueAnimator iconUpdateAnimation = ValueAnimator.ofInt(originalAlpha, 0);
+        // Reads the fraction rather than the animated value, to avoid boxing on every frame. The
+        // filters are shared and read without a lock, so that frames with the same alpha don't
+        // create new ones.
+        ValueAnimator iconUpdateAnimation = ValueAnimator.ofFloat(0, 1);
         iconUpdateAnimation.setDuration(375);
         iconUpdateAnimation.addUpdateListener(valueAnimator -> {
-            int newAlpha = (int) valueAnimator.getAnimatedValue();
+            int newAlpha = (int) (originalAlpha * (1 - valueAnimator.getAnimatedFraction()));
             int newColor = ColorUtils.setAlphaComponent(placeholderColor, newAlpha);
 
-            newIcon.setColorFilter(new PorterDuffColorFilter(newColor, PorterDuff.Mode.SRC_ATOP));
+            newIcon.setColorFilter(
+                    ColorFilterCache.getTintFilter(newColor, PorterDuff.Mode.SRC_ATOP));
         });
         iconUpdateAnimation.addListener(new AnimatorListenerAdapter() {
             @Override
@@ -75,7 +88,7 @@ public class PlaceHolderIconDrawable extends FastBitmapDrawable {
                 newIcon.setColorFilter(null);
             }
         });
-        iconUpdateAnimation.start();
+        return iconUpdateAnimation;
     }
 
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Color;
+
+import java.util.ArrayList;
+
+/**
+ * Pool of bitmaps used for the intermediate steps of rendering an icon, so that only the final
+ * icon is allocated. Bitmaps are matched by size and config, which rarely change for a given
+ * {@link BaseIconFactory}.
+ *
+ * This class is not thread safe, each factory owns its own pool.
+ */
+class ScratchBitmapPool {
+
+    private static final int MAX_POOL_SIZE = 4;
+
+    private final ArrayList<Bitmap> mBitmaps = new ArrayList<>(MAX_POOL_SIZE);
+
+    /**
+     * Returns a transparent mutable bitmap. The bitmap must be released once it is no longer
+     * used, and must never be returned to the callers of the factory.
+     */
+    Bitmap acquire(int width, int height, Config config) {
+        for (int i = mBitmaps.size() - 1; i >= 0; i--) {
+            Bitmap bitmap = mBitmaps.get(i);
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                    && bitmap.getConfig() == config) {
+                mBitmaps.remove(i);
+                bitmap.eraseColor(Color.TRANSPARENT);
+                return bitmap;
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Returns {@param bitmap} to the pool, evicting the oldest bitmap if the pool is full
+     */
+    void release(Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        if (mBitmaps.size() >= MAX_POOL_SIZE) {
+            mBitmaps.remove(0);
+        }
+        mBitmaps.add(bitmap);
+    }
+}
@@ -28,8 +28,12 @@ import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.RectF;
 
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
- * Utility class to add shadows to bitmaps.
+ * Utility class to add shadows to bitmaps. Can be used from multiple threads.
  */
 public class ShadowGenerator {
 
@@ -44,43 +48,88 @@ public class ShadowGenerator {
     private static final float HALF_DISTANCE = 0.5f;
     private static final int AMBIENT_SHADOW_ALPHA = 25;
 
+    private static final int MAX_CACHED_SHADOWS = 8;
+
+    // Paints are mutated while drawing, so each thread uses its own
+    private static final ThreadLocal<Paints> sPaints = ThreadLocal.withInitial(Paints::new);
+
+    // Shadows of the icons with a known shape, shared by all the generators. Readers don't
+    // take a lock, and the cache is cleared when full, as there are only a few keys per mask.
+    private static final ConcurrentHashMap<ShadowKey, Shadow> sShadowCache =
+            new ConcurrentHashMap<>();
+
     private final int mIconSize;
+    private final float mBlurRadius;
 
-    private final Paint mBlurPaint;
-    private final Paint mDrawPaint;
     private final BlurMaskFilter mDefaultBlurMaskFilter;
 
     public ShadowGenerator(int iconSize) {
         mIconSize = iconSize;
-        mBlurPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
-        mDrawPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
-        mDefaultBlurMaskFilter = new BlurMaskFilter(mIconSize * BLUR_FACTOR, Blur.NORMAL);
+        mBlurRadius = mIconSize * BLUR_FACTOR;
+        mDefaultBlurMaskFilter = new BlurMaskFilter(mBlurRadius, Blur.NORMAL);
     }
 
-    public synchronized void recreateIcon(Bitmap icon, Canvas out) {
+    public void recreateIcon(Bitmap icon, Canvas out) {
         recreateIcon(icon, mDefaultBlurMaskFilter, AMBIENT_SHADOW_ALPHA, KEY_SHADOW_ALPHA, out);
     }
 
-    public synchronized void recreateIcon(Bitmap icon, BlurMaskFilter blurMaskFilter,
+    public void recreateIcon(Bitmap icon, BlurMaskFilter blurMaskFilter,
             int ambientAlpha, int keyAlpha, Canvas out) {
+        Paints paints = sPaints.get();
         if (ENABLE_SHADOWS) {
-            int[] offset = new int[2];
-            mBlurPaint.setMaskFilter(blurMaskFilter);
-            Bitmap shadow = icon.extractAlpha(mBlurPaint, offset);
-
-            // Draw ambient shadow
-            mDrawPaint.setAlpha(ambientAlpha);
-            out.drawBitmap(shadow, offset[0], offset[1], mDrawPaint);
-
-            // Draw key shadow
-            mDrawPaint.setAlpha(keyAlpha);
-            out.drawBitmap(shadow, offset[0], offset[1] + KEY_SHADOW_DISTANCE * mIconSize,
-                    mDrawPaint);
+            paints.blurPaint.setMaskFilter(blurMaskFilter);
+            Bitmap shadow = icon.extractAlpha(paints.blurPaint, paints.offset);
+            paints.blurPaint.setMaskFilter(null);
+            drawShadow(shadow, paints.offset[0], paints.offset[1], ambientAlpha, keyAlpha, out,
+                    paints.drawPaint);
         }
+        drawIcon(icon, out, paints.drawPaint);
+    }
+
+    /**
+     * Same as {@link #recreateIcon(Bitmap, Canvas)}, for an icon whose alpha is exactly
+     * {@param shape} drawn at {@param scale}, for eg. an adaptive icon with an opaque color
+     * background. The shadow is computed once and shared by all the icons with the same shape,
+     * scale and size.
+     */
+    public void recreateIcon(Bitmap icon, @NonNull IconShape shape, float scale, Canvas out) {
+        if (!ENABLE_SHADOWS) {
+            recreateIcon(icon, out);
+            return;
+        }
+        Paints paints = sPaints.get();
+        ShadowKey key = new ShadowKey(shape, scale, icon.getWidth(), icon.getHeight(),
+                mBlurRadius);
+        Shadow shadow = sShadowCache.get(key);
+        if (shadow == null) {
+            paints.blurPaint.setMaskFilter(mDefaultBlurMaskFilter);
+            shadow = new Shadow(icon.extractAlpha(paints.blurPaint, paints.offset),
+                    paints.offset[0], paints.offset[1]);
+            paints.blurPaint.setMaskFilter(null);
+            if (sShadowCache.size() >= MAX_CACHED_SHADOWS) {
+                sShadowCache.clear();
+            }
+            sShadowCache.putIfAbsent(key, shadow);
+        }
+        drawShadow(shadow.bitmap, shadow.left, shadow.top, AMBIENT_SHADOW_ALPHA, KEY_SHADOW_ALPHA,
+                out, paints.drawPaint);
+        drawIcon(icon, out, paints.drawPaint);
+    }
+
+    private void drawShadow(Bitmap shadow, int left, int top, int ambientAlpha, int keyAlpha,
+            Canvas out, Paint drawPaint) {
+        // Draw ambient shadow
+        drawPaint.setAlpha(ambientAlpha);
+        out.drawBitmap(shadow, left, top, drawPaint);
+
+        // Draw key shadow
+        drawPaint.setAlpha(keyAlpha);
+        out.drawBitmap(shadow, left, top + KEY_SHADOW_DISTANCE * mIconSize, drawPaint);
+    }
 
-        // Draw the icon
-        mDrawPaint.setAlpha(255);
-        out.drawBitmap(icon, 0, 0, mDrawPaint);
+    private static void drawIcon(Bitmap icon, Canvas out, Paint drawPaint) {
+        drawPaint.setAlpha(255);
+        out.drawBitmap(icon, 0, 0, drawPaint);
     }
 
     /**
@@ -106,6 +155,63 @@ public class ShadowGenerator {
         return scale;
     }
 
+    private static class Paints {
+        final Paint blurPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        final Paint drawPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        final int[] offset = new int[2];
+    }
+
+    private static class ShadowKey {
+        // Compared by identity, a new instance is created when the system mask changes
+        final IconShape shape;
+        final float scale;
+        final int width;
+        final int height;
+        final float blurRadius;
+
+        ShadowKey(IconShape shape, float scale, int width, int height, float blurRadius) {
+            this.shape = shape;
+            this.scale = scale;
+            this.width = width;
+            this.height = height;
+            this.blurRadius = blurRadius;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ShadowKey)) {
+                return false;
+            }
+            ShadowKey other = (ShadowKey) o;
+            return shape == other.shape
+                    && Float.compare(scale, other.scale) == 0
+                    && width == other.width
+                    && height == other.height
+                    && Float.compare(blurRadius, other.blurRadius) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(shape);
+            result = 31 * result + Float.floatToIntBits(scale);
+            result = 31 * result + width;
+            result = 31 * result + height;
+            return 31 * result + Float.floatToIntBits(blurRadius);
+        }
+    }
+
+    private static class Shadow {
+        final Bitmap bitmap;
+        final int left;
+        final int top;
+
+        Shadow(Bitmap bitmap, int left, int top) {
+            this.bitmap = bitmap;
+            this.left = left;
+            this.top = top;
+        }
+    }
+
     public static class Builder {
 
         public final RectF bounds = new RectF();
@@ -38,6 +38,7 @@ import android.os.Process;
 import android.os.UserHandle;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.android.launcher3.R;
@@ -143,6 +144,11 @@ public class ThemedIconDrawable extends FastBitmapDrawable {
             mUserBadge = userBadge;
         }
 
+        @Override
+        public BitmapInfo withIcon(@NonNull Bitmap icon) {
+            return new ThemedBitmapInfo(icon, color, mThemeData, mNormalizationScale, mUserBadge);
+        }
+
         @Override
         public FastBitmapDrawable newThemedIcon(Context context) {
             int[] colors = getColors(context);
@@ -153,19 +159,25 @@ public class ThemedIconDrawable extends FastBitmapDrawable {
         }
 
         @Nullable
-        public byte[] toByteArray() {
+        @Override
+        public byte[] toByteArray(BitmapCodec codec) {
             if (isNullOrLowRes()) {
                 return null;
             }
             String resName = mThemeData.mResources.getResourceName(mThemeData.mResID);
             ByteArrayOutputStream out = new ByteArrayOutputStream(
-                    getExpectedBitmapSize(icon) + 3 + resName.length());
+                    getExpectedBitmapSize(icon) + 8 + resName.length());
             try {
                 DataOutputStream dos = new DataOutputStream(out);
-                dos.writeByte(TYPE_THEMED);
+                boolean legacyFormat = codec == BitmapCodec.PNG;
+                dos.writeByte(legacyFormat ? TYPE_THEMED : TYPE_THEMED_ENCODED);
                 dos.writeFloat(mNormalizationScale);
                 dos.writeUTF(resName);
-                icon.compress(Bitmap.CompressFormat.PNG, 100, dos);
+                if (legacyFormat) {
+                    icon.compress(Bitmap.CompressFormat.PNG, 100, dos);
+                } else {
+                    codec.encode(icon, dos);
+                }
 
                 dos.flush();
                 dos.close();
@@ -179,8 +191,9 @@ public class ThemedIconDrawable extends FastBitmapDrawable {
         static ThemedBitmapInfo decode(byte[] data, int color,
                 BitmapFactory.Options decodeOptions, UserHandle user, BaseIconCache iconCache,
                 Context context) {
-            try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data))) {
-                dis.readByte(); // type
+            ByteArrayInputStream in = new ByteArrayInputStream(data);
+            try (DataInputStream dis = new DataInputStream(in)) {
+                byte type = dis.readByte();
                 float normalizationScale = dis.readFloat();
 
                 String resName = dis.readUTF();
@@ -198,7 +211,9 @@ public class ThemedIconDrawable extends FastBitmapDrawable {
                 }
 
                 ThemeData themeData = new ThemeData(context.getResources(), resId);
-                Bitmap icon = BitmapFactory.decodeStream(dis, null, decodeOptions);
+                Bitmap icon = type == TYPE_THEMED_ENCODED
+                        ? BitmapCodec.decode(data, data.length - in.available(), decodeOptions)
+                        : BitmapFactory.decodeStream(dis, null, decodeOptions);
                 return new ThemedBitmapInfo(icon, color, themeData, normalizationScale,
                         userBadgeBitmap);
             } catch (IOException e) {
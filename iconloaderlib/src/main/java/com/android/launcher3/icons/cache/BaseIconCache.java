@@ -22,6 +22,7 @@ import static com.android.launcher3.icons.GraphicsUtils.setColorAlphaBound;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
@@ -32,6 +33,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
+import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Handler;
@@ -48,16 +50,25 @@ import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import com.android.launcher3.icons.BaseIconFactory;
+import com.android.launcher3.icons.BitmapCodec;
 import com.android.launcher3.icons.BitmapInfo;
+import com.android.launcher3.icons.IconFactoryPool;
+import com.android.launcher3.icons.NormalizationCache;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.SQLiteCacheHelper;
+import com.android.launcher3.util.SQLiteCacheHelper.Options;
 
-import java.util.AbstractMap;
-import java.util.Collections;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 public abstract class BaseIconCache {
@@ -65,17 +76,46 @@ public abstract class BaseIconCache {
     private static final String TAG = "BaseIconCache";
     private static final boolean DEBUG = false;
 
-    private static final int INITIAL_ICON_CACHE_CAPACITY = 50;
+    // Maximum number of components looked up by a single bulk query, to remain well under the
+    // SQLite limit on the number of bound arguments.
+    private static final int MAX_BULK_QUERY_ARGS = 500;
+
+    // Maximum number of threads used to render icons in parallel during cache updates
+    private static final int MAX_ICON_RENDER_THREADS = 4;
+    private static final long ICON_RENDER_THREAD_KEEP_ALIVE_MS = 1000;
+
+    private static final String UPDATE_HANDLER_PREFS_SUFFIX = ".update_handler";
+
+    // Maximum number of rows buffered by a DB batch before they are written in one transaction
+    private static final int MAX_DB_BATCH_SIZE = 50;
 
     // Empty class name is used for storing package default entry.
     public static final String EMPTY_CLASS_NAME = ".";
 
     public static class CacheEntry {
 
+        // Fields are volatile as entries can be read from any thread using peekEntry
+        @NonNull
+        public volatile BitmapInfo bitmap = BitmapInfo.LOW_RES_INFO;
+        public volatile CharSequence title = "";
+        public volatile CharSequence contentDescription = "";
+
+        // Uptime of the last lookup of this entry, used to approximate LRU in IconMemoryCache
+        volatile long lastAccessTime;
+
+        /**
+         * Returns a copy of this entry holding {@param newBitmap}. Entries shared through the
+         * memory cache are never modified, a copy is installed instead.
+         */
         @NonNull
-        public BitmapInfo bitmap = BitmapInfo.LOW_RES_INFO;
-        public CharSequence title = "";
-        public CharSequence contentDescription = "";
+        CacheEntry withBitmap(@NonNull BitmapInfo newBitmap) {
+            CacheEntry copy = new CacheEntry();
+            copy.bitmap = newBitmap;
+            copy.title = title;
+            copy.contentDescription = contentDescription;
+            copy.lastAccessTime = lastAccessTime;
+            return copy;
+        }
     }
 
     private final HashMap<UserHandle, BitmapInfo> mDefaultIcons = new HashMap<>();
@@ -83,45 +123,177 @@ public abstract class BaseIconCache {
     protected final Context mContext;
     protected final PackageManager mPackageManager;
 
-    private final Map<ComponentKey, CacheEntry> mCache;
+    private final IconMemoryCache mCache;
+
+    // Normalization cache backed by the current icon DB, used from the icon render threads.
+    // Results are written by the worker thread, in a single transaction per flush.
+    private final NormalizationCache mNormalizationCache = new NormalizationCache() {
+        @Nullable
+        @Override
+        public Result get(@NonNull Key key) {
+            return mIconDb.getNormalization(key);
+        }
+
+        @Override
+        public void put(@NonNull Key key, @NonNull Result result) {
+            ContentValues values = IconDB.newNormalizationValues(key, result);
+            boolean scheduleFlush;
+            synchronized (mPendingNormalizations) {
+                scheduleFlush = mPendingNormalizations.isEmpty();
+                mPendingNormalizations.add(values);
+            }
+            if (scheduleFlush) {
+                mWorkerHandler.post(BaseIconCache.this::flushNormalizations);
+            }
+        }
+    };
+    // Normalization results waiting to be written to the DB. Guarded by itself.
+    private final ArrayList<ContentValues> mPendingNormalizations = new ArrayList<>();
     protected final Handler mWorkerHandler;
 
     protected int mIconDpi;
-    protected IconDB mIconDb;
+    // Also read from the icon render threads by the normalization cache
+    protected volatile IconDB mIconDb;
     protected LocaleList mLocaleList = LocaleList.getEmptyLocaleList();
     protected String mSystemState = "";
 
     private final String mDbFileName;
     private final Looper mBgLooper;
+    private int mIconPixelSize;
+    @NonNull
+    private Options mDbOptions = Options.DEFAULT;
+    @NonNull
+    private BitmapCodec mBitmapCodec = BitmapCodec.PNG;
+    private boolean mKeepSoftwareBitmaps = false;
+    // Storage for the icon pixels, or null if they are stored in the DB
+    @Nullable
+    private IconAtlas mIconAtlas;
+
+    private ExecutorService mIconRenderExecutor;
+    // Incremented for every new update handler, to discard tasks from the previous ones
+    volatile int mUpdateHandlerGeneration = 0;
+    // DB, and number of times its table was created, described by the saved state of the
+    // incremental update runs. The state is discarded when the DB is cleared or replaced.
+    @Nullable
+    IconDB mUpdateStateDb;
+    int mUpdateStateDbCreations;
+
+    // Rows waiting to be written to the DB, non-null while a DB batch is open
+    @Nullable
+    private ArrayList<ContentValues> mPendingDbWrites;
+    private int mDbBatchDepth = 0;
 
     public BaseIconCache(Context context, String dbFileName, Looper bgLooper,
             int iconDpi, int iconPixelSize, boolean inMemoryCache) {
+        this(context, dbFileName, bgLooper, iconDpi, iconPixelSize, inMemoryCache,
+                EvictionPolicy.UNBOUNDED);
+    }
+
+    /**
+     * @param memCacheMaxBytes maximum size of the high-res icons kept in memory. Least recently
+     *                         used icons above this limit are demoted to their low-res form.
+     */
+    public BaseIconCache(Context context, String dbFileName, Looper bgLooper,
+            int iconDpi, int iconPixelSize, boolean inMemoryCache, long memCacheMaxBytes) {
+        this(context, dbFileName, bgLooper, iconDpi, iconPixelSize, inMemoryCache,
+                EvictionPolicy.byteBudget(memCacheMaxBytes));
+    }
+
+    public BaseIconCache(Context context, String dbFileName, Looper bgLooper,
+            int iconDpi, int iconPixelSize, boolean inMemoryCache,
+            @NonNull EvictionPolicy evictionPolicy) {
         mContext = context;
         mDbFileName = dbFileName;
         mPackageManager = context.getPackageManager();
         mBgLooper = bgLooper;
         mWorkerHandler = new Handler(mBgLooper);
+        mCache = new IconMemoryCache(inMemoryCache, evictionPolicy);
 
-        if (inMemoryCache) {
-            mCache = new HashMap<>(INITIAL_ICON_CACHE_CAPACITY);
-        } else {
-            // Use a dummy cache
-            mCache = new AbstractMap<ComponentKey, CacheEntry>() {
-                @Override
-                public Set<Entry<ComponentKey, CacheEntry>> entrySet() {
-                    return Collections.emptySet();
-                }
+        updateSystemState();
+        mIconDpi = iconDpi;
+        mIconPixelSize = iconPixelSize;
+        mIconDb = new IconDB(context, dbFileName, iconPixelSize, mDbOptions);
+        // The state saved by a previous process describes the DB as it is opened, unless its
+        // table is created when opening it
+        mUpdateStateDb = mIconDb;
+        mUpdateStateDbCreations = 0;
+    }
 
-                @Override
-                public CacheEntry put(ComponentKey key, CacheEntry value) {
-                    return value;
+    /**
+     * Sets the codec used to serialize the icons written to the DB. Icons already in the DB
+     * remain readable, whichever codec they were written with.
+     */
+    public synchronized void setBitmapCodec(@NonNull BitmapCodec codec) {
+        mBitmapCodec = codec;
+    }
+
+    /**
+     * By default, rendered icons are moved to hardware bitmaps before being kept in memory, once
+     * they have been written to the DB. Set this if the callers need to access the pixels of the
+     * icons returned by the cache.
+     */
+    public synchronized void setKeepSoftwareBitmaps(boolean keepSoftwareBitmaps) {
+        mKeepSoftwareBitmaps = keepSoftwareBitmaps;
+    }
+
+    /**
+     * Returns the version of a freshly rendered {@param icon} to be retained in memory
+     */
+    private BitmapInfo finalizeIcon(@Nullable BitmapInfo icon) {
+        return icon == null || mKeepSoftwareBitmaps ? icon : icon.toHardwareBitmapInfo();
+    }
+
+    /**
+     * Enables storing the pixels of the icons in a memory-mapped atlas file next to the DB,
+     * instead of storing them as BLOBs in the DB. Icons are then decoded directly from the
+     * mapped file. Changing this invalidates the system state, so that all the icons are written
+     * again by the next {@link IconCacheUpdateHandler}.
+     */
+    public void setIconAtlasEnabled(boolean enabled) {
+        synchronized (this) {
+            if (enabled == (mIconAtlas != null)) {
+                return;
+            }
+        }
+
+        // The atlas file is opened and deleted without holding the cache lock
+        IconAtlas newAtlas = null;
+        if (enabled) {
+            newAtlas = new IconAtlas(
+                    new File(mContext.getDatabasePath(mDbFileName).getPath() + ".atlas"));
+            if (!newAtlas.isOpen()) {
+                return;
+            }
+        }
+        IconAtlas oldAtlas;
+        synchronized (this) {
+            if (enabled == (mIconAtlas != null)) {
+                // Changed concurrently
+                if (newAtlas != null) {
+                    newAtlas.close();
                 }
-            };
+                return;
+            }
+            flushDbBatch();
+            oldAtlas = mIconAtlas;
+            mIconAtlas = newAtlas;
+            updateSystemState();
         }
+        if (oldAtlas != null) {
+            oldAtlas.delete();
+        }
+    }
 
-        updateSystemState();
-        mIconDpi = iconDpi;
-        mIconDb = new IconDB(context, dbFileName, iconPixelSize);
+    /**
+     * Sets the options used to open the icon DB, for eg. to enable write-ahead logging. The DB
+     * is reopened lazily with the new options, and its content is preserved. This should be
+     * called before the cache is first used.
+     */
+    public synchronized void setDatabaseOptions(@NonNull Options options) {
+        mDbOptions = options;
+        flushDbBatch();
+        mIconDb.close();
+        mIconDb = new IconDB(mContext, mDbFileName, mIconPixelSize, mDbOptions);
     }
 
     /**
@@ -136,21 +308,66 @@ public abstract class BaseIconCache {
     protected abstract boolean isInstantApp(ApplicationInfo info);
 
     /**
-     * Opens and returns an icon factory. The factory is recycled by the caller.
+     * Opens and returns an icon factory. The factory is recycled by the caller. This can be
+     * called from the icon render threads concurrently, so each call must return a factory
+     * which is not in use, for example from a pool created by {@link #newIconFactoryPool}.
      */
     public abstract BaseIconFactory getIconFactory();
 
+    /**
+     * Returns a pool of icon factories sized for the worker thread and the icon render threads
+     */
+    protected <T extends BaseIconFactory> IconFactoryPool<T> newIconFactoryPool(
+            @NonNull Supplier<T> factorySupplier) {
+        return new IconFactoryPool<>(getIconRenderThreadCount() + 1, () -> {
+            T factory = factorySupplier.get();
+            factory.setNormalizationCache(mNormalizationCache);
+            return factory;
+        });
+    }
+
+    /**
+     * Returns a normalization cache persisted in the icon DB, which can be used by the icon
+     * factories of this cache
+     */
+    public NormalizationCache getNormalizationCache() {
+        return mNormalizationCache;
+    }
+
     public void updateIconParams(int iconDpi, int iconPixelSize) {
         mWorkerHandler.post(() -> updateIconParamsBg(iconDpi, iconPixelSize));
     }
 
-    private synchronized void updateIconParamsBg(int iconDpi, int iconPixelSize) {
-        mIconDpi = iconDpi;
-        mDefaultIcons.clear();
-        mIconDb.clear();
-        mIconDb.close();
-        mIconDb = new IconDB(mContext, mDbFileName, iconPixelSize);
-        mCache.clear();
+    private void updateIconParamsBg(int iconDpi, int iconPixelSize) {
+        resetIconAtlas();
+        synchronized (this) {
+            mIconDpi = iconDpi;
+            mDefaultIcons.clear();
+            if (mPendingDbWrites != null) {
+                mPendingDbWrites.clear();
+            }
+            mIconDb.clear();
+            mIconDb.close();
+            mIconPixelSize = iconPixelSize;
+            mIconDb = new IconDB(mContext, mDbFileName, iconPixelSize, mDbOptions);
+            mCache.clear();
+            updateSystemState();
+        }
+    }
+
+    /**
+     * Resets the atlas, if any, without holding the cache lock. This must be done before
+     * clearing the DB: rows written in between reference the new generation, and are removed
+     * along with the DB.
+     */
+    private void resetIconAtlas() {
+        IconAtlas atlas;
+        synchronized (this) {
+            atlas = mIconAtlas;
+        }
+        if (atlas != null) {
+            atlas.reset();
+        }
     }
 
     private Drawable getFullResIcon(Resources resources, int iconId) {
@@ -184,37 +401,74 @@ public abstract class BaseIconCache {
     }
 
     /**
-     * Remove any records for the supplied ComponentName.
+     * Returns the entry for the component if it is already present in memory, without
+     * blocking on the worker thread, icon rendering or DB access. Can be called from any thread.
+     * @param useLowResIcon if false, entries only holding a low-res icon are not returned
+     * @return the entry, or null if it needs to be loaded using {@link #cacheLocked}
      */
-    public synchronized void remove(ComponentName componentName, UserHandle user) {
-        mCache.remove(new ComponentKey(componentName, user));
+    @Nullable
+    public CacheEntry peekEntry(@NonNull ComponentName componentName, @NonNull UserHandle user,
+            boolean useLowResIcon) {
+        CacheEntry entry = mCache.get(componentName, user);
+        if (entry == null || (!useLowResIcon && entry.bitmap.isNullOrLowRes())) {
+            return null;
+        }
+        return entry;
     }
 
     /**
-     * Remove any records for the supplied package name from memory.
+     * Remove any records for the supplied ComponentName.
      */
-    private void removeFromMemCacheLocked(String packageName, UserHandle user) {
-        HashSet<ComponentKey> forDeletion = new HashSet<>();
-        for (ComponentKey key: mCache.keySet()) {
-            if (key.componentName.getPackageName().equals(packageName)
-                    && key.user.equals(user)) {
-                forDeletion.add(key);
-            }
-        }
-        for (ComponentKey condemned: forDeletion) {
-            mCache.remove(condemned);
-        }
+    public synchronized void remove(ComponentName componentName, UserHandle user) {
+        mCache.remove(new ComponentKey(componentName, user));
     }
 
     /**
      * Removes the entries related to the given package in memory and persistent DB.
      */
     public synchronized void removeIconsForPkg(String packageName, UserHandle user) {
-        removeFromMemCacheLocked(packageName, user);
+        mCache.removePackage(packageName, user);
         long userSerial = getSerialNumberForUser(user);
+        flushDbBatch();
         mIconDb.delete(
-                IconDB.COLUMN_COMPONENT + " LIKE ? AND " + IconDB.COLUMN_USER + " = ?",
-                new String[]{packageName + "/%", Long.toString(userSerial)});
+                IconDB.COLUMN_PACKAGE + " = ? AND " + IconDB.COLUMN_USER + " = ?",
+                new String[]{packageName, Long.toString(userSerial)});
+        mIconDb.removeNormalizationsForPkg(packageName);
+    }
+
+    /**
+     * Returns a bounded pool of background threads used to render icons in parallel. Idle
+     * threads are released after a short timeout.
+     */
+    public synchronized ExecutorService getIconRenderExecutor() {
+        if (mIconRenderExecutor == null) {
+            int threadCount = getIconRenderThreadCount();
+            AtomicInteger threadId = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                    ICON_RENDER_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(),
+                    r -> new Thread(() -> {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }, "icon-render-" + threadId.incrementAndGet()));
+            executor.allowCoreThreadTimeOut(true);
+            mIconRenderExecutor = executor;
+        }
+        return mIconRenderExecutor;
+    }
+
+    private static int getIconRenderThreadCount() {
+        return Math.max(1, Math.min(MAX_ICON_RENDER_THREADS,
+                Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * Returns the preferences used by {@link IconCacheUpdateHandler} to persist its state
+     * between runs
+     */
+    SharedPreferences getUpdateHandlerPrefs() {
+        return mContext.getSharedPreferences(
+                mDbFileName + UPDATE_HANDLER_PREFS_SUFFIX, Context.MODE_PRIVATE);
     }
 
     public IconCacheUpdateHandler getUpdateHandler() {
@@ -230,6 +484,10 @@ public abstract class BaseIconCache {
     private void updateSystemState() {
         mLocaleList = mContext.getResources().getConfiguration().getLocales();
         mSystemState = mLocaleList.toLanguageTags() + "," + Build.VERSION.SDK_INT;
+        if (mIconAtlas != null) {
+            // Icons stored in a previous generation of the atlas need to be written again
+            mSystemState += ",atlas:" + mIconAtlas.getGeneration();
+        }
     }
 
     protected String getIconSystemState(String packageName) {
@@ -245,6 +503,16 @@ public abstract class BaseIconCache {
     @VisibleForTesting
     public synchronized <T> void addIconToDBAndMemCache(T object, CachingLogic<T> cachingLogic,
             PackageInfo info, long userSerial, boolean replaceExisting) {
+        addIconToDBAndMemCache(object, cachingLogic, info, userSerial, replaceExisting, null);
+    }
+
+    /**
+     * @param preloadedIcon icon already loaded using {@param cachingLogic}, or null if the icon
+     *                      should be loaded here when required
+     */
+    synchronized <T> void addIconToDBAndMemCache(T object, CachingLogic<T> cachingLogic,
+            PackageInfo info, long userSerial, boolean replaceExisting,
+            @Nullable BitmapInfo preloadedIcon) {
         UserHandle user = cachingLogic.getUser(object);
         ComponentName componentName = cachingLogic.getComponent(object);
 
@@ -259,7 +527,8 @@ public abstract class BaseIconCache {
         }
         if (entry == null) {
             entry = new CacheEntry();
-            entry.bitmap = cachingLogic.loadIcon(mContext, object);
+            entry.bitmap = preloadedIcon != null
+                    ? preloadedIcon : loadIcon(cachingLogic, object);
         }
         // Icon can't be loaded from cachingLogic, which implies alternative icon was loaded
         // (e.g. fallback icon, default icon). So we drop here since there's no point in caching
@@ -274,10 +543,13 @@ public abstract class BaseIconCache {
         entry.title = entryTitle;
 
         entry.contentDescription = mPackageManager.getUserBadgedLabel(entry.title, user);
-        if (cachingLogic.addToMemCache()) mCache.put(key, entry);
 
         ContentValues values = newContentValues(entry.bitmap, entry.title.toString(),
                 componentName.getPackageName(), cachingLogic.getKeywords(object, mLocaleList));
+        // The icon is serialized, it can now be moved to graphics memory
+        entry.bitmap = finalizeIcon(entry.bitmap);
+        if (cachingLogic.addToMemCache()) mCache.put(key, entry);
+
         addIconToDB(values, componentName, info, userSerial,
                 cachingLogic.getLastUpdatedTime(object, info));
     }
@@ -289,10 +561,82 @@ public abstract class BaseIconCache {
     private void addIconToDB(ContentValues values, ComponentName key,
             PackageInfo info, long userSerial, long lastUpdateTime) {
         values.put(IconDB.COLUMN_COMPONENT, key.flattenToString());
+        values.put(IconDB.COLUMN_PACKAGE, key.getPackageName());
         values.put(IconDB.COLUMN_USER, userSerial);
         values.put(IconDB.COLUMN_LAST_UPDATED, lastUpdateTime);
         values.put(IconDB.COLUMN_VERSION, info.versionCode);
-        mIconDb.insertOrReplace(values);
+        if (mPendingDbWrites != null) {
+            mPendingDbWrites.add(values);
+            if (mPendingDbWrites.size() >= MAX_DB_BATCH_SIZE) {
+                flushDbBatch();
+            }
+        } else {
+            if (mIconAtlas != null) {
+                mIconAtlas.sync();
+            }
+            mIconDb.insertOrReplace(values);
+        }
+    }
+
+    /**
+     * Starts buffering the DB writes, so that they are committed together in a single
+     * transaction. Batches can be nested, and the writes are committed when the outermost batch
+     * ends, when the buffer is full, or before any DB read or delete.
+     */
+    synchronized void beginDbBatch() {
+        if (mDbBatchDepth++ == 0) {
+            mPendingDbWrites = new ArrayList<>(MAX_DB_BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Ends a batch started with {@link #beginDbBatch()}
+     */
+    synchronized void endDbBatch() {
+        if (mDbBatchDepth > 0 && --mDbBatchDepth == 0) {
+            flushDbBatch();
+            mPendingDbWrites = null;
+        }
+    }
+
+    /**
+     * Commits all pending writes and ends all open batches, for eg. when the tasks owning them
+     * are cancelled.
+     */
+    synchronized void endAllDbBatches() {
+        flushDbBatch();
+        mPendingDbWrites = null;
+        mDbBatchDepth = 0;
+    }
+
+    /**
+     * Writes all the rows buffered by the current DB batch, if any
+     */
+    synchronized void flushDbBatch() {
+        if (mPendingDbWrites != null && !mPendingDbWrites.isEmpty()) {
+            if (mIconAtlas != null) {
+                mIconAtlas.sync();
+            }
+            mIconDb.insertOrReplaceAll(mPendingDbWrites);
+            mPendingDbWrites.clear();
+        }
+    }
+
+    /**
+     * Writes the normalization results computed since the last flush to the current DB
+     */
+    private void flushNormalizations() {
+        ArrayList<ContentValues> rows;
+        synchronized (mPendingNormalizations) {
+            if (mPendingNormalizations.isEmpty()) {
+                return;
+            }
+            rows = new ArrayList<>(mPendingNormalizations);
+            mPendingNormalizations.clear();
+        }
+        synchronized (this) {
+            mIconDb.insertOrReplaceAll(IconDB.TABLE_NORMALIZATION, rows);
+        }
     }
 
     public synchronized BitmapInfo getDefaultIcon(UserHandle user) {
@@ -306,6 +650,17 @@ public abstract class BaseIconCache {
         return getDefaultIcon(user).icon == icon.icon;
     }
 
+    /**
+     * Loads the icon of {@param object} with a factory of this cache. This can be called from
+     * the icon render threads.
+     */
+    @NonNull
+    <T> BitmapInfo loadIcon(@NonNull CachingLogic<T> cachingLogic, @NonNull T object) {
+        try (BaseIconFactory li = getIconFactory()) {
+            return cachingLogic.loadIcon(mContext, li, object);
+        }
+    }
+
     /**
      * Retrieves the entry from the cache. If the entry is not present, it creates a new entry.
      * This method is not thread safe, it must be called from a synchronized method.
@@ -328,27 +683,54 @@ public abstract class BaseIconCache {
             @NonNull ComponentName componentName, @NonNull UserHandle user,
             @NonNull Supplier<T> infoProvider, @NonNull CachingLogic<T> cachingLogic,
             @Nullable Cursor cursor, boolean usePackageIcon, boolean useLowResIcon) {
+        return cacheLocked(componentName, user, infoProvider, cachingLogic, cursor,
+                true /* lookupDb */, usePackageIcon, useLowResIcon);
+    }
+
+    /**
+     * @param lookupDb if false and {@param cursor} is null, the entry is not looked up in the DB,
+     *                 as it is already known to be missing.
+     */
+    private <T> CacheEntry cacheLocked(
+            @NonNull ComponentName componentName, @NonNull UserHandle user,
+            @NonNull Supplier<T> infoProvider, @NonNull CachingLogic<T> cachingLogic,
+            @Nullable Cursor cursor, boolean lookupDb, boolean usePackageIcon,
+            boolean useLowResIcon) {
         assertWorkerThread();
+        CacheEntry entry = mCache.get(componentName, user);
+        if (entry != null && !(entry.bitmap.isLowRes() && !useLowResIcon)) {
+            // Cache hits don't need to allocate a key
+            return entry;
+        }
         ComponentKey cacheKey = new ComponentKey(componentName, user);
-        CacheEntry entry = mCache.get(cacheKey);
+        if (entry != null && entry.bitmap.isLowRes() && !useLowResIcon) {
+            CacheEntry upgraded = upgradeToHighResLocked(
+                    cacheKey, entry, infoProvider, cachingLogic, cursor, lookupDb);
+            if (upgraded != null) {
+                if (cachingLogic.addToMemCache()) {
+                    mCache.replace(cacheKey, entry, upgraded);
+                }
+                return upgraded;
+            }
+        }
         if (entry == null || (entry.bitmap.isLowRes() && !useLowResIcon)) {
             entry = new CacheEntry();
-            if (cachingLogic.addToMemCache()) {
-                mCache.put(cacheKey, entry);
-            }
 
             // Check the DB first.
             T object = null;
             boolean providerFetchedOnce = false;
-            boolean cacheEntryUpdated = cursor == null
-                    ? getEntryFromDB(cacheKey, entry, useLowResIcon)
-                    : updateTitleAndIcon(cacheKey, entry, cursor, useLowResIcon);
+            boolean cacheEntryUpdated;
+            if (cursor != null) {
+                cacheEntryUpdated = updateTitleAndIcon(cacheKey, entry, cursor, useLowResIcon);
+            } else {
+                cacheEntryUpdated = lookupDb && getEntryFromDB(cacheKey, entry, useLowResIcon);
+            }
             if (!cacheEntryUpdated) {
                 object = infoProvider.get();
                 providerFetchedOnce = true;
 
                 if (object != null) {
-                    entry.bitmap = cachingLogic.loadIcon(mContext, object);
+                    entry.bitmap = finalizeIcon(loadIcon(cachingLogic, object));
                 } else {
                     if (usePackageIcon) {
                         CacheEntry packageEntry = getEntryForPackageLocked(
@@ -380,13 +762,135 @@ public abstract class BaseIconCache {
                             cachingLogic.getDescription(object, entry.title), user);
                 }
             }
+
+            // Only add the entry once it is filled, so that the size of its icon is accounted
+            if (cachingLogic.addToMemCache()) {
+                mCache.put(cacheKey, entry);
+            }
         }
         return entry;
     }
 
-    public synchronized void clear() {
+    /**
+     * Bulk version of {@link #cacheLocked}, which retrieves the entries for all the {@param keys}.
+     * Entries not already in memory are read from the DB with a single query per user, and the
+     * ones missing from the DB are created using {@param infoProvider}.
+     * This method is not thread safe, it must be called from a synchronized method.
+     * @return the entry for each of the provided keys
+     */
+    protected <T> Map<ComponentKey, CacheEntry> cacheBulkLocked(
+            @NonNull List<ComponentKey> keys, @NonNull Function<ComponentKey, T> infoProvider,
+            @NonNull CachingLogic<T> cachingLogic, boolean usePackageIcon,
+            boolean useLowResIcon) {
         assertWorkerThread();
-        mIconDb.clear();
+        HashMap<ComponentKey, CacheEntry> result = new HashMap<>(keys.size());
+
+        // Group the keys to load per user, indexed by the flattened component name
+        HashMap<UserHandle, HashMap<String, ComponentKey>> keysToLoad = new HashMap<>();
+        for (ComponentKey key : keys) {
+            CacheEntry entry = mCache.get(key);
+            if (entry != null && !(entry.bitmap.isLowRes() && !useLowResIcon)) {
+                result.put(key, entry);
+                continue;
+            }
+            HashMap<String, ComponentKey> userKeys = keysToLoad.get(key.user);
+            if (userKeys == null) {
+                userKeys = new HashMap<>();
+                keysToLoad.put(key.user, userKeys);
+            }
+            userKeys.put(key.componentName.flattenToString(), key);
+        }
+
+        flushDbBatch();
+        Trace.beginSection("loadIconsInBulk");
+        try {
+            for (Map.Entry<UserHandle, HashMap<String, ComponentKey>> userKeys
+                    : keysToLoad.entrySet()) {
+                HashMap<String, ComponentKey> pending = userKeys.getValue();
+                String userSerial = Long.toString(getSerialNumberForUser(userKeys.getKey()));
+                ArrayList<String> components = new ArrayList<>(pending.keySet());
+
+                for (int start = 0; start < components.size(); start += MAX_BULK_QUERY_ARGS) {
+                    int end = Math.min(start + MAX_BULK_QUERY_ARGS, components.size());
+                    String[] args = new String[end - start + 1];
+                    StringBuilder selection = new StringBuilder()
+                            .append(IconDB.COLUMN_USER).append(" = ? AND ")
+                            .append(IconDB.COLUMN_COMPONENT).append(" IN (");
+                    args[0] = userSerial;
+                    for (int i = start; i < end; i++) {
+                        selection.append(i == start ? "?" : ", ?");
+                        args[i - start + 1] = components.get(i);
+                    }
+                    selection.append(')');
+
+                    try (Cursor c = mIconDb.query(
+                            useLowResIcon ? IconDB.COLUMNS_LOW_RES : IconDB.COLUMNS_HIGH_RES,
+                            selection.toString(), args)) {
+                        int componentIndex = c.getColumnIndex(IconDB.COLUMN_COMPONENT);
+                        while (c.moveToNext()) {
+                            ComponentKey key = pending.remove(c.getString(componentIndex));
+                            if (key == null) {
+                                continue;
+                            }
+                            result.put(key, cacheLocked(key.componentName, key.user,
+                                    () -> infoProvider.apply(key), cachingLogic, c,
+                                    true /* lookupDb */, usePackageIcon, useLowResIcon));
+                        }
+                    } catch (SQLiteException e) {
+                        Log.d(TAG, "Error reading icon cache", e);
+                    }
+                }
+
+                // Anything left is not present in the DB
+                for (ComponentKey key : pending.values()) {
+                    result.put(key, cacheLocked(key.componentName, key.user,
+                            () -> infoProvider.apply(key), cachingLogic, null,
+                            false /* lookupDb */, usePackageIcon, useLowResIcon));
+                }
+            }
+        } finally {
+            Trace.endSection();
+        }
+        return result;
+    }
+
+    /**
+     * Returns a high-res copy of the in-memory low-res {@param entry}. Only the icon is loaded,
+     * while the title and content description of the entry are retained.
+     * @return the copy, or null if the high-res icon couldn't be loaded
+     */
+    @Nullable
+    private <T> CacheEntry upgradeToHighResLocked(ComponentKey cacheKey, CacheEntry entry,
+            Supplier<T> infoProvider, CachingLogic<T> cachingLogic, @Nullable Cursor cursor,
+            boolean lookupDb) {
+        BitmapInfo icon = null;
+        if (cursor != null) {
+            icon = decodeIcon(cacheKey, cursor.getBlob(2), entry.bitmap.color);
+        } else if (lookupDb) {
+            icon = getIconFromDB(cacheKey, entry.bitmap.color);
+        }
+        if (icon == null) {
+            T object = infoProvider.get();
+            if (object != null) {
+                icon = finalizeIcon(loadIcon(cachingLogic, object));
+            }
+        }
+        if (icon == null || icon.isNullOrLowRes()) {
+            return null;
+        }
+        return entry.withBitmap(icon);
+    }
+
+    public void clear() {
+        assertWorkerThread();
+        resetIconAtlas();
+        synchronized (this) {
+            if (mPendingDbWrites != null) {
+                mPendingDbWrites.clear();
+            }
+            mIconDb.clear();
+            updateSystemState();
+        }
     }
 
     /**
@@ -395,7 +899,7 @@ public abstract class BaseIconCache {
      */
     protected synchronized void cachePackageInstallInfo(String packageName, UserHandle user,
             Bitmap icon, CharSequence title) {
-        removeFromMemCacheLocked(packageName, user);
+        mCache.removePackage(packageName, user);
 
         ComponentKey cacheKey = getPackageKey(packageName, user);
         CacheEntry entry = mCache.get(cacheKey);
@@ -408,9 +912,9 @@ public abstract class BaseIconCache {
             entry.title = title;
         }
         if (icon != null) {
-            BaseIconFactory li = getIconFactory();
-            entry.bitmap = li.createShapedIconBitmap(icon, user);
-            li.close();
+            try (BaseIconFactory li = getIconFactory()) {
+                entry.bitmap = finalizeIcon(li.createShapedIconBitmap(icon, user));
+            }
         }
         if (!TextUtils.isEmpty(title) && entry.bitmap.icon != null) {
             mCache.put(cacheKey, entry);
@@ -429,8 +933,21 @@ public abstract class BaseIconCache {
     protected CacheEntry getEntryForPackageLocked(String packageName, UserHandle user,
             boolean useLowResIcon) {
         assertWorkerThread();
+        CacheEntry entry = mCache.get(packageName, EMPTY_CLASS_NAME, user);
+        if (entry != null && !(entry.bitmap.isLowRes() && !useLowResIcon)) {
+            // Cache hits don't need to allocate a key
+            return entry;
+        }
         ComponentKey cacheKey = getPackageKey(packageName, user);
-        CacheEntry entry = mCache.get(cacheKey);
+
+        if (entry != null && entry.bitmap.isLowRes() && !useLowResIcon) {
+            BitmapInfo icon = getIconFromDB(cacheKey, entry.bitmap.color);
+            if (icon != null) {
+                CacheEntry upgraded = entry.withBitmap(icon);
+                mCache.replace(cacheKey, entry, upgraded);
+                return upgraded;
+            }
+        }
 
         if (entry == null || (entry.bitmap.isLowRes() && !useLowResIcon)) {
             entry = new CacheEntry();
@@ -447,23 +964,29 @@ public abstract class BaseIconCache {
                         throw new NameNotFoundException("ApplicationInfo is null");
                     }
 
-                    BaseIconFactory li = getIconFactory();
                     // Load the full res icon for the application, but if useLowResIcon is set, then
                     // only keep the low resolution icon instead of the larger full-sized icon
-                    BitmapInfo iconInfo = li.createBadgedIconBitmap(
-                            appInfo.loadIcon(mPackageManager), user, appInfo.targetSdkVersion,
-                            isInstantApp(appInfo));
-                    li.close();
+                    BitmapInfo iconInfo;
+                    try (BaseIconFactory li = getIconFactory()) {
+                        // loadIcon uses the density of the display, not mIconDpi
+                        li.setNormalizationKey(packageName, info.getLongVersionCode(),
+                                appInfo.icon,
+                                mContext.getResources().getConfiguration().densityDpi);
+                        iconInfo = li.createBadgedIconBitmap(
+                                appInfo.loadIcon(mPackageManager), user, appInfo.targetSdkVersion,
+                                isInstantApp(appInfo));
+                    }
 
                     entry.title = appInfo.loadLabel(mPackageManager);
                     entry.contentDescription = mPackageManager.getUserBadgedLabel(entry.title, user);
-                    entry.bitmap = BitmapInfo.of(
-                            useLowResIcon ? LOW_RES_ICON : iconInfo.icon, iconInfo.color);
 
                     // Add the icon in the DB here, since these do not get written during
                     // package updates.
                     ContentValues values = newContentValues(
                             iconInfo, entry.title.toString(), packageName, null);
+                    entry.bitmap = useLowResIcon
+                            ? BitmapInfo.of(LOW_RES_ICON, iconInfo.color)
+                            : finalizeIcon(BitmapInfo.of(iconInfo.icon, iconInfo.color));
                     addIconToDB(values, cacheKey.componentName, info, getSerialNumberForUser(user),
                             info.lastUpdateTime);
 
@@ -482,6 +1005,7 @@ public abstract class BaseIconCache {
     }
 
     protected boolean getEntryFromDB(ComponentKey cacheKey, CacheEntry entry, boolean lowRes) {
+        flushDbBatch();
         Cursor c = null;
         Trace.beginSection("loadIconIndividually");
         try {
@@ -505,6 +1029,50 @@ public abstract class BaseIconCache {
         return false;
     }
 
+    /**
+     * Loads only the high-res icon for {@param cacheKey} from the DB
+     * @return the icon or null if it is not present
+     */
+    @Nullable
+    protected BitmapInfo getIconFromDB(ComponentKey cacheKey, int color) {
+        flushDbBatch();
+        Cursor c = null;
+        Trace.beginSection("loadHighResIcon");
+        try {
+            c = mIconDb.query(
+                    IconDB.COLUMNS_ICON,
+                    IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
+                    new String[]{
+                            cacheKey.componentName.flattenToString(),
+                            Long.toString(getSerialNumberForUser(cacheKey.user))});
+            if (c.moveToNext()) {
+                return decodeIcon(cacheKey, c.getBlob(0), color);
+            }
+        } catch (SQLiteException e) {
+            Log.d(TAG, "Error reading icon cache", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            Trace.endSection();
+        }
+        return null;
+    }
+
+    @Nullable
+    private BitmapInfo decodeIcon(ComponentKey cacheKey, byte[] data, int color) {
+        if (IconAtlas.isReference(data)) {
+            Bitmap icon = mIconAtlas == null ? null : mIconAtlas.read(data);
+            return icon == null ? null : BitmapInfo.of(icon, color);
+        }
+        try {
+            BitmapInfo icon = BitmapInfo.fromByteArray(data, color, cacheKey.user, this, mContext);
+            return icon == null || icon.isNullOrLowRes() ? null : icon;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     private boolean updateTitleAndIcon(
             ComponentKey cacheKey, CacheEntry entry, Cursor c, boolean lowRes) {
         // Set the alpha to be 255, so that we never have a wrong color
@@ -519,12 +1087,7 @@ public abstract class BaseIconCache {
         }
 
         if (!lowRes) {
-            try {
-                entry.bitmap = BitmapInfo.fromByteArray(
-                        c.getBlob(2), entry.bitmap.color, cacheKey.user, this, mContext);
-            } catch (Exception e) {
-                return false;
-            }
+            entry.bitmap = decodeIcon(cacheKey, c.getBlob(2), entry.bitmap.color);
         }
         return entry.bitmap != null;
     }
@@ -534,6 +1097,7 @@ public abstract class BaseIconCache {
      */
     public synchronized Cursor queryCacheDb(String[] columns, String selection,
             String[] selectionArgs) {
+        flushDbBatch();
         return mIconDb.query(columns, selection, selectionArgs);
     }
 
@@ -541,7 +1105,11 @@ public abstract class BaseIconCache {
      * Cache class to store the actual entries on disk
      */
     public static final class IconDB extends SQLiteCacheHelper {
-        private static final int RELEASE_VERSION = 32;
+        // Version 33 can contain icons written with a BitmapCodec, which older versions don't
+        // support. Downgrading resets the DB.
+        // Version 34 adds the package name column.
+        // Version 35 adds the normalization table.
+        private static final int RELEASE_VERSION = 35;
 
         public static final String TABLE_NAME = "icons";
         public static final String COLUMN_ROWID = "rowid";
@@ -554,6 +1122,33 @@ public abstract class BaseIconCache {
         public static final String COLUMN_LABEL = "label";
         public static final String COLUMN_SYSTEM_STATE = "system_state";
         public static final String COLUMN_KEYWORDS = "keywords";
+        public static final String COLUMN_PACKAGE = "packageName";
+
+        private static final String INDEX_PACKAGE = TABLE_NAME + "_package_index";
+
+        // Secondary table storing the results of the icon normalization
+        public static final String TABLE_NORMALIZATION = "normalization";
+        public static final String COLUMN_VERSION_CODE = "versionCode";
+        public static final String COLUMN_RES_ID = "resId";
+        public static final String COLUMN_DENSITY = "density";
+        public static final String COLUMN_SHAPE_HASH = "shapeHash";
+        public static final String COLUMN_SCALE = "scale";
+        public static final String COLUMN_BOUNDS_LEFT = "boundsLeft";
+        public static final String COLUMN_BOUNDS_TOP = "boundsTop";
+        public static final String COLUMN_BOUNDS_RIGHT = "boundsRight";
+        public static final String COLUMN_BOUNDS_BOTTOM = "boundsBottom";
+        public static final String COLUMN_IS_SHAPE = "isShape";
+
+        private static final String[] COLUMNS_NORMALIZATION = new String[] {
+                COLUMN_SCALE,
+                COLUMN_BOUNDS_LEFT,
+                COLUMN_BOUNDS_TOP,
+                COLUMN_BOUNDS_RIGHT,
+                COLUMN_BOUNDS_BOTTOM,
+                COLUMN_IS_SHAPE};
+        private static final String SELECTION_NORMALIZATION = COLUMN_PACKAGE + " = ? AND "
+                + COLUMN_VERSION_CODE + " = ? AND " + COLUMN_RES_ID + " = ? AND "
+                + COLUMN_DENSITY + " = ? AND " + COLUMN_SHAPE_HASH + " = ?";
 
         public static final String[] COLUMNS_HIGH_RES = new String[] {
                 IconDB.COLUMN_ICON_COLOR,
@@ -562,9 +1157,63 @@ public abstract class BaseIconCache {
                 COLUMN_COMPONENT};
         public static final String[] COLUMNS_LOW_RES = new String[] {
                 IconDB.COLUMN_ICON_COLOR, IconDB.COLUMN_LABEL, COLUMN_COMPONENT};
+        public static final String[] COLUMNS_ICON = new String[] {IconDB.COLUMN_ICON};
 
         public IconDB(Context context, String dbFileName, int iconPixelSize) {
-            super(context, dbFileName, (RELEASE_VERSION << 16) + iconPixelSize, TABLE_NAME);
+            this(context, dbFileName, iconPixelSize, Options.DEFAULT);
+        }
+
+        public IconDB(Context context, String dbFileName, int iconPixelSize,
+                @NonNull Options options) {
+            super(context, dbFileName, (RELEASE_VERSION << 16) + iconPixelSize, TABLE_NAME,
+                    options);
+        }
+
+        /**
+         * Returns the normalization result stored for {@param key}, or null. This can be called
+         * from any thread, while the DB is closed or replaced, which is a cache miss.
+         */
+        @Nullable
+        NormalizationCache.Result getNormalization(NormalizationCache.Key key) {
+            String[] args = new String[] {key.packageName, Long.toString(key.versionCode),
+                    Integer.toString(key.resId), Integer.toString(key.density),
+                    Integer.toString(key.shapeHash)};
+            try (Cursor c = query(TABLE_NORMALIZATION, COLUMNS_NORMALIZATION,
+                    SELECTION_NORMALIZATION, args)) {
+                if (!c.moveToNext()) {
+                    return null;
+                }
+                RectF bounds = new RectF(c.getFloat(1), c.getFloat(2), c.getFloat(3),
+                        c.getFloat(4));
+                return new NormalizationCache.Result(c.getFloat(0), bounds, c.getInt(5) != 0);
+            } catch (SQLiteException | IllegalStateException e) {
+                Log.d(TAG, "Error reading normalization cache", e);
+                return null;
+            }
+        }
+
+        /**
+         * Returns the row storing {@param result} for {@param key} in the normalization table
+         */
+        static ContentValues newNormalizationValues(NormalizationCache.Key key,
+                NormalizationCache.Result result) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_PACKAGE, key.packageName);
+            values.put(COLUMN_VERSION_CODE, key.versionCode);
+            values.put(COLUMN_RES_ID, key.resId);
+            values.put(COLUMN_DENSITY, key.density);
+            values.put(COLUMN_SHAPE_HASH, key.shapeHash);
+            values.put(COLUMN_SCALE, result.scale);
+            values.put(COLUMN_BOUNDS_LEFT, result.bounds.left);
+            values.put(COLUMN_BOUNDS_TOP, result.bounds.top);
+            values.put(COLUMN_BOUNDS_RIGHT, result.bounds.right);
+            values.put(COLUMN_BOUNDS_BOTTOM, result.bounds.bottom);
+            values.put(COLUMN_IS_SHAPE, result.isShape ? 1 : 0);
+            return values;
+        }
+
+        void removeNormalizationsForPkg(String packageName) {
+            delete(TABLE_NORMALIZATION, COLUMN_PACKAGE + " = ?", new String[] {packageName});
         }
 
         @Override
@@ -579,15 +1228,45 @@ public abstract class BaseIconCache {
                     + COLUMN_LABEL + " TEXT, "
                     + COLUMN_SYSTEM_STATE + " TEXT, "
                     + COLUMN_KEYWORDS + " TEXT, "
+                    + COLUMN_PACKAGE + " TEXT NOT NULL DEFAULT '', "
                     + "PRIMARY KEY (" + COLUMN_COMPONENT + ", " + COLUMN_USER + ") "
                     + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_PACKAGE + " ON " + TABLE_NAME
+                    + " (" + COLUMN_PACKAGE + ", " + COLUMN_USER + ");");
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NORMALIZATION + " ("
+                    + COLUMN_PACKAGE + " TEXT NOT NULL, "
+                    + COLUMN_VERSION_CODE + " INTEGER NOT NULL, "
+                    + COLUMN_RES_ID + " INTEGER NOT NULL, "
+                    + COLUMN_DENSITY + " INTEGER NOT NULL, "
+                    + COLUMN_SHAPE_HASH + " INTEGER NOT NULL, "
+                    + COLUMN_SCALE + " REAL NOT NULL, "
+                    + COLUMN_BOUNDS_LEFT + " REAL NOT NULL, "
+                    + COLUMN_BOUNDS_TOP + " REAL NOT NULL, "
+                    + COLUMN_BOUNDS_RIGHT + " REAL NOT NULL, "
+                    + COLUMN_BOUNDS_BOTTOM + " REAL NOT NULL, "
+                    + COLUMN_IS_SHAPE + " INTEGER NOT NULL DEFAULT 0, "
+                    + "PRIMARY KEY (" + COLUMN_PACKAGE + ", " + COLUMN_VERSION_CODE + ", "
+                    + COLUMN_RES_ID + ", " + COLUMN_DENSITY + ", " + COLUMN_SHAPE_HASH + ") "
+                    + ");");
+        }
+
+        @Override
+        protected void onDropSecondaryTables(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_NORMALIZATION);
         }
     }
 
     private ContentValues newContentValues(BitmapInfo bitmapInfo, String label,
             String packageName, @Nullable String keywords) {
         ContentValues values = new ContentValues();
-        values.put(IconDB.COLUMN_ICON, bitmapInfo.toByteArray());
+        byte[] atlasReference = null;
+        if (mIconAtlas != null && bitmapInfo.getClass() == BitmapInfo.class
+                && !bitmapInfo.isNullOrLowRes()) {
+            // Subclasses serialize additional data with the icon, and are kept in the DB
+            atlasReference = mIconAtlas.write(bitmapInfo.icon);
+        }
+        values.put(IconDB.COLUMN_ICON, atlasReference != null
+                ? atlasReference : bitmapInfo.toByteArray(mBitmapCodec));
         values.put(IconDB.COLUMN_ICON_COLOR, bitmapInfo.color);
 
         values.put(IconDB.COLUMN_LABEL, label);
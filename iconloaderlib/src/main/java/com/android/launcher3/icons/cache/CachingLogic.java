@@ -24,6 +24,7 @@ import android.os.UserHandle;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.android.launcher3.icons.BaseIconFactory;
 import com.android.launcher3.icons.BitmapInfo;
 
 public interface CachingLogic<T> {
@@ -41,6 +42,18 @@ public interface CachingLogic<T> {
     @NonNull
     BitmapInfo loadIcon(Context context, T object);
 
+    /**
+     * Loads the icon of {@param object} using {@param factory}, which is owned by the caller.
+     * Implementations which draw a drawable resource of the package as is can override this to
+     * identify it using {@link BaseIconFactory#setNormalizationKey}, with the density it was
+     * loaded at, so that its normalization is not recomputed on the next render. By default,
+     * this uses {@link #loadIcon(Context, Object)}.
+     */
+    @NonNull
+    default BitmapInfo loadIcon(Context context, BaseIconFactory factory, T object) {
+        return loadIcon(context, object);
+    }
+
     /**
      * Provides a option list of keywords to associate with this object
      */
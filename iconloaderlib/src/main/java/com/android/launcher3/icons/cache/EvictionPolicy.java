@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons.cache;
+
+import androidx.annotation.NonNull;
+
+import com.android.launcher3.icons.cache.BaseIconCache.CacheEntry;
+
+/**
+ * Policy used to bound the memory retained by the high-res icons of {@link BaseIconCache}.
+ * Once the total size of the high-res entries exceeds {@link #getMaxSize()}, the least recently
+ * used entries are demoted to their low-res form.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Policy which never demotes any entry
+     */
+    EvictionPolicy UNBOUNDED = byteBudget(Long.MAX_VALUE);
+
+    /**
+     * Returns the size of the high-res data retained by {@param entry}, or 0 if the entry
+     * does not hold a high-res icon.
+     */
+    long sizeOf(@NonNull CacheEntry entry);
+
+    /**
+     * Returns the maximum total size of the high-res entries retained in memory
+     */
+    long getMaxSize();
+
+    /**
+     * Returns a policy which limits the high-res icons to {@param maxBytes}, based on the
+     * allocation size of the icon bitmaps.
+     */
+    static EvictionPolicy byteBudget(long maxBytes) {
+        return new ByteBudget(maxBytes);
+    }
+
+    /**
+     * Policy which sizes entries by {@link android.graphics.Bitmap#getAllocationByteCount()}
+     */
+    class ByteBudget implements EvictionPolicy {
+
+        private final long mMaxBytes;
+
+        public ByteBudget(long maxBytes) {
+            mMaxBytes = maxBytes;
+        }
+
+        @Override
+        public long sizeOf(@NonNull CacheEntry entry) {
+            return entry.bitmap.isNullOrLowRes() ? 0 : entry.bitmap.icon.getAllocationByteCount();
+        }
+
+        @Override
+        public long getMaxSize() {
+            return mMaxBytes;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons.cache;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.android.launcher3.icons.BitmapRenderer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only file storing the raw pixels of icons, as an alternative to storing them as BLOBs
+ * in {@link BaseIconCache.IconDB}. The DB only keeps a small reference to the pixels, and the
+ * icons are decoded directly from a memory mapping of the file, without intermediate copies.
+ *
+ * The file starts with a header containing a generation, which changes every time the atlas is
+ * reset. References from a different generation are never resolved. Replaced icons are not
+ * reclaimed until the atlas is reset, which happens when the DB is cleared, or when the atlas is
+ * opened after growing over {@link #RESET_ON_OPEN_SIZE}. Icons which don't fit in
+ * {@link #MAX_ATLAS_SIZE} are not written to the atlas.
+ */
+class IconAtlas {
+
+    private static final String TAG = "IconAtlas";
+
+    // Type of the serialized references, must not collide with the types of BitmapInfo
+    private static final byte TYPE_ATLAS_REFERENCE = 64;
+    // Type (1), generation (8), offset (4) and length (4)
+    private static final int REFERENCE_SIZE = 17;
+
+    private static final int MAGIC = 0x49434e41;
+    // Magic (4) and generation (8)
+    private static final int HEADER_SIZE = 12;
+    // Width (4) and height (4)
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final long MAX_ATLAS_SIZE = 64 * 1024 * 1024;
+    private static final long RESET_ON_OPEN_SIZE = MAX_ATLAS_SIZE / 2;
+
+    private final File mFile;
+
+    @Nullable
+    private RandomAccessFile mRaf;
+    @Nullable
+    private FileChannel mChannel;
+    private long mGeneration;
+
+    // Read-only mapping of the file, recreated when a reference points past its end
+    @Nullable
+    private MappedByteBuffer mMap;
+    private boolean mHasUnsyncedWrites;
+
+    IconAtlas(File file) {
+        mFile = file;
+        try {
+            mRaf = new RandomAccessFile(file, "rw");
+            mChannel = mRaf.getChannel();
+            if (!readHeader()) {
+                reset();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open icon atlas, icons will be stored in the DB", e);
+            close();
+        }
+    }
+
+    private boolean readHeader() throws IOException {
+        long size = mChannel.size();
+        if (size < HEADER_SIZE || size > RESET_ON_OPEN_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (mChannel.read(header, header.position()) < 0) {
+                return false;
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            return false;
+        }
+        mGeneration = header.getLong();
+        return true;
+    }
+
+    /**
+     * Returns true if the atlas can be used
+     */
+    synchronized boolean isOpen() {
+        return mChannel != null;
+    }
+
+    /**
+     * Returns the generation of the atlas, which changes every time the atlas is reset
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Discards all the icons in the atlas, invalidating all the existing references
+     */
+    synchronized void reset() {
+        if (mChannel == null) {
+            return;
+        }
+        mMap = null;
+        mGeneration = Math.max(mGeneration + 1, System.currentTimeMillis());
+        try {
+            // Truncating is safe even though previous mappings may not be unmapped yet: mappings
+            // are only accessed in read(), under this lock, and were dropped above. References to
+            // the previous content are never resolved against the new content, as they hold the
+            // previous generation.
+            mChannel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putLong(mGeneration).flip();
+            writeFully(header, 0);
+            mChannel.force(false);
+            mHasUnsyncedWrites = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to reset icon atlas", e);
+            close();
+        }
+    }
+
+    /**
+     * Appends the pixels of {@param bitmap} to the atlas
+     * @return the serialized reference to the pixels, or null if they couldn't be written
+     */
+    @Nullable
+    synchronized byte[] write(Bitmap bitmap) {
+        if (mChannel == null) {
+            return null;
+        }
+        if (bitmap.getConfig() != Config.ARGB_8888) {
+            // Hardware bitmaps can't be read directly
+            bitmap = bitmap.copy(Config.ARGB_8888, false);
+        }
+        int length = RECORD_HEADER_SIZE + bitmap.getByteCount();
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(bitmap.getWidth()).putInt(bitmap.getHeight());
+        bitmap.copyPixelsToBuffer(record);
+        record.flip();
+
+        try {
+            long offset = mChannel.size();
+            if (offset + length > MAX_ATLAS_SIZE) {
+                // Keep the existing references valid, and store the icon in the DB instead until
+                // the atlas is reset.
+                return null;
+            }
+            writeFully(record, offset);
+            mHasUnsyncedWrites = true;
+            return ByteBuffer.allocate(REFERENCE_SIZE)
+                    .put(TYPE_ATLAS_REFERENCE)
+                    .putLong(mGeneration)
+                    .putInt((int) offset)
+                    .putInt(length)
+                    .array();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write to icon atlas", e);
+            return null;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Makes sure that all the icons written so far are persisted, before adding references to
+     * them in the DB.
+     */
+    synchronized void sync() {
+        if (mChannel == null || !mHasUnsyncedWrites) {
+            return;
+        }
+        try {
+            mChannel.force(false);
+            mHasUnsyncedWrites = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to sync icon atlas", e);
+        }
+    }
+
+    /**
+     * Returns the icon for a reference previously returned by {@link #write}, or null if the
+     * reference is no longer valid.
+     */
+    @Nullable
+    synchronized Bitmap read(byte[] reference) {
+        if (mChannel == null || !isReference(reference)) {
+            return null;
+        }
+        ByteBuffer ref = ByteBuffer.wrap(reference, 1, REFERENCE_SIZE - 1);
+        if (ref.getLong() != mGeneration) {
+            return null;
+        }
+        int offset = ref.getInt();
+        int length = ref.getInt();
+        if (offset < HEADER_SIZE || length < RECORD_HEADER_SIZE) {
+            return null;
+        }
+
+        try {
+            long end = (long) offset + length;
+            if (mMap == null || mMap.capacity() < end) {
+                long size = mChannel.size();
+                if (size < end) {
+                    return null;
+                }
+                mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to map icon atlas", e);
+            return null;
+        }
+
+        ByteBuffer record = mMap.duplicate();
+        record.position(offset);
+        int width = record.getInt();
+        int height = record.getInt();
+        if (width <= 0 || height <= 0
+                || (long) width * height * 4 != length - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        record.limit(offset + length);
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+        bitmap.copyPixelsFromBuffer(record);
+        if (BitmapRenderer.USE_HARDWARE_BITMAP) {
+            Bitmap hwBitmap = bitmap.copy(Config.HARDWARE, false);
+            if (hwBitmap != null) {
+                bitmap.recycle();
+                bitmap = hwBitmap;
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Closes the atlas and deletes the file
+     */
+    synchronized void delete() {
+        close();
+        if (!mFile.delete() && mFile.exists()) {
+            Log.w(TAG, "Unable to delete icon atlas");
+        }
+    }
+
+    synchronized void close() {
+        mMap = null;
+        mChannel = null;
+        if (mRaf != null) {
+            try {
+                mRaf.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close icon atlas", e);
+            }
+            mRaf = null;
+        }
+    }
+
+    /**
+     * Returns true if {@param data} is a serialized reference to an icon in an atlas
+     */
+    static boolean isReference(@Nullable byte[] data) {
+        return data != null && data.length == REFERENCE_SIZE && data[0] == TYPE_ATLAS_REFERENCE;
+    }
+}
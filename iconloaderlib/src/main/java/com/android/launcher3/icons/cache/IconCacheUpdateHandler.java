@@ -16,27 +16,40 @@
 package com.android.launcher3.icons.cache;
 
 import android.content.ComponentName;
+import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.ChangedPackages;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
+import android.os.Process;
 import android.os.SystemClock;
 import android.os.UserHandle;
+import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Log;
 import android.util.SparseBooleanArray;
 
+import androidx.annotation.Nullable;
+
+import com.android.launcher3.icons.BitmapInfo;
 import com.android.launcher3.icons.cache.BaseIconCache.IconDB;
+import com.android.launcher3.util.ComponentKey;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
 
 /**
  * Utility class to handle updating the Icon cache
@@ -59,7 +72,27 @@ public class IconCacheUpdateHandler {
 
     private static final Object ICON_UPDATE_TOKEN = new Object();
 
+    // Number of icons rendered in parallel before being committed together
+    private static final int PARALLEL_BATCH_SIZE = 16;
+
+    // Persisted state of the incremental mode
+    private static final String KEY_BOOT_COUNT = "boot_count";
+    private static final String KEY_SEQUENCE_NUMBER = "sequence_number";
+    private static final String KEY_SYSTEM_STATE = "system_state";
+
+    // Persisted progress of an interrupted update run
+    private static final String KEY_CHECKPOINT_DONE = "checkpoint_done";
+    private static final String KEY_CHECKPOINT_ELAPSED = "checkpoint_elapsed";
+
+    // Number of icons processed between two checkpoints
+    private static final int CHECKPOINT_INTERVAL = 50;
+    // Minimum delay between two progress notifications
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    // Package info for the packages of the current user, which is either complete or filled on
+    // demand in incremental mode. A null value means that the package is not installed.
     private final HashMap<String, PackageInfo> mPkgInfoMap;
+    private boolean mPkgInfoMapComplete = false;
     private final BaseIconCache mIconCache;
 
     private final ArrayMap<UserHandle, Set<String>> mPackagesToIgnore = new ArrayMap<>();
@@ -67,15 +100,49 @@ public class IconCacheUpdateHandler {
     private final SparseBooleanArray mItemsToDelete = new SparseBooleanArray();
     private boolean mFilterMode = MODE_SET_INVALID_ITEMS;
 
+    private boolean mParallelUpdate = false;
+    private final int mGeneration;
+
+    private boolean mIncrementalUpdate = false;
+    // Packages of the current user changed since the last complete run, or null if all the
+    // packages need to be checked. Only valid once mChangeSequenceNumber is set.
+    private Set<String> mChangedPackages;
+    private int mChangeSequenceNumber = -1;
+    // DB described by the change sequence, which is only saved if the DB was not reset
+    private IconDB mChangeSequenceDb;
+    private int mChangeSequenceDbCreations;
+
+    private int mActiveTasks = 0;
+    private boolean mFinished = false;
+    private boolean mCancelled = false;
+
+    // Progress of the run, including the progress of the interrupted runs it resumes
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private final int mResumedDone;
+    private final long mResumedElapsed;
+    private int mTotal = 0;
+    private int mDone = 0;
+    private int mDoneAtCheckpoint = 0;
+    private long mLastProgressTime = 0;
+    @Nullable
+    private OnProgressListener mOnProgressListener;
+
     IconCacheUpdateHandler(BaseIconCache cache) {
         mIconCache = cache;
 
         mPkgInfoMap = new HashMap<>();
 
-        // Remove all active icon update tasks.
+        // Remove all active icon update tasks, and commit the writes they have buffered.
         mIconCache.mWorkerHandler.removeCallbacksAndMessages(ICON_UPDATE_TOKEN);
-
-        createPackageInfoMap();
+        mGeneration = ++mIconCache.mUpdateHandlerGeneration;
+        mIconCache.endAllDbBatches();
+
+        // Icons are written to the DB as they are processed, so an interrupted run is resumed by
+        // the next one, which only finds the icons left to update. Restore the progress of the
+        // interrupted run, so that it is reported as a single run.
+        SharedPreferences prefs = mIconCache.getUpdateHandlerPrefs();
+        mResumedDone = prefs.getInt(KEY_CHECKPOINT_DONE, 0);
+        mResumedElapsed = prefs.getLong(KEY_CHECKPOINT_ELAPSED, 0);
     }
 
     /**
@@ -90,12 +157,190 @@ public class IconCacheUpdateHandler {
         packages.add(packageName);
     }
 
+    /**
+     * Enables rendering icons in parallel on {@link BaseIconCache#getIconRenderExecutor()}, and
+     * committing them to the DB and memory in batches. When disabled (default), icons are
+     * rendered one at a time on the worker thread, yielding between each icon.
+     * {@link CachingLogic#loadIcon} must be safe to call concurrently in parallel mode.
+     */
+    public void setParallelUpdateEnabled(boolean enabled) {
+        mParallelUpdate = enabled;
+    }
+
+    /**
+     * Enables only checking the packages of the current user which changed since the last
+     * complete run, using {@link PackageManager#getChangedPackages(int)}. All the packages are
+     * checked when the change sequence is not valid anymore, for eg. after a reboot, or when
+     * the DB or the system state changed. Other users are always fully checked.
+     * Must be called before {@link #updateIcons}.
+     */
+    public void setIncrementalUpdateEnabled(boolean enabled) {
+        mIncrementalUpdate = enabled;
+    }
+
     private void createPackageInfoMap() {
+        if (mPkgInfoMapComplete) {
+            return;
+        }
+        mPkgInfoMap.clear();
         PackageManager pm = mIconCache.mPackageManager;
         for (PackageInfo info :
                 pm.getInstalledPackages(PackageManager.MATCH_UNINSTALLED_PACKAGES)) {
             mPkgInfoMap.put(info.packageName, info);
         }
+        mPkgInfoMapComplete = true;
+    }
+
+    private PackageInfo getPackageInfo(String packageName) {
+        if (mPkgInfoMapComplete || mPkgInfoMap.containsKey(packageName)) {
+            return mPkgInfoMap.get(packageName);
+        }
+        PackageInfo info;
+        try {
+            info = mIconCache.mPackageManager.getPackageInfo(
+                    packageName, PackageManager.MATCH_UNINSTALLED_PACKAGES);
+        } catch (NameNotFoundException e) {
+            info = null;
+        }
+        mPkgInfoMap.put(packageName, info);
+        return info;
+    }
+
+    /**
+     * Loads the packages changed since the last complete run, and the sequence number to
+     * persist once this run completes.
+     */
+    private void loadChangedPackages() {
+        if (mChangeSequenceNumber >= 0) {
+            return;
+        }
+        PackageManager pm = mIconCache.mPackageManager;
+        mChangeSequenceDb = mIconCache.mIconDb;
+        mChangeSequenceDbCreations = mChangeSequenceDb.getTableCreationCount();
+
+        SharedPreferences prefs = mIconCache.getUpdateHandlerPrefs();
+        int bootCount = getBootCount();
+        int sequenceNumber = prefs.getInt(KEY_SEQUENCE_NUMBER, -1);
+        // The saved state doesn't describe the DB if it was created, cleared or replaced since
+        boolean cursorValid = mIconCache.mUpdateStateDb == mChangeSequenceDb
+                && mIconCache.mUpdateStateDbCreations == mChangeSequenceDbCreations
+                && bootCount >= 0 && sequenceNumber >= 0
+                && prefs.getInt(KEY_BOOT_COUNT, -1) == bootCount
+                && mIconCache.mSystemState.equals(prefs.getString(KEY_SYSTEM_STATE, null));
+
+        ChangedPackages changes = pm.getChangedPackages(cursorValid ? sequenceNumber : 0);
+        if (cursorValid) {
+            mChangedPackages = changes == null
+                    ? Collections.emptySet() : new HashSet<>(changes.getPackageNames());
+            mChangeSequenceNumber = changes == null ? sequenceNumber : changes.getSequenceNumber();
+        } else {
+            mChangedPackages = null;
+            mChangeSequenceNumber = changes == null ? 0 : changes.getSequenceNumber();
+        }
+    }
+
+    private int getBootCount() {
+        return Settings.Global.getInt(mIconCache.mContext.getContentResolver(),
+                Settings.Global.BOOT_COUNT, -1);
+    }
+
+    /**
+     * Sets a listener notified periodically of the progress of the run, and once it completes
+     */
+    public void setOnProgressListener(@Nullable OnProgressListener listener) {
+        mOnProgressListener = listener;
+    }
+
+    /**
+     * Stops all the pending updates of this run. The icons updated so far are kept, and the
+     * progress is saved so that the next run resumes from here. Must be called on the worker
+     * thread.
+     */
+    public void cancel() {
+        if (mCancelled) {
+            return;
+        }
+        mCancelled = true;
+        if (mGeneration == mIconCache.mUpdateHandlerGeneration) {
+            mIconCache.mWorkerHandler.removeCallbacksAndMessages(ICON_UPDATE_TOKEN);
+            saveCheckpoint();
+            mIconCache.endAllDbBatches();
+        }
+    }
+
+    /**
+     * Returns true if the tasks of this run can still make progress, i.e. the run was not
+     * cancelled, and no newer update handler was created
+     */
+    private boolean isActive() {
+        return !mCancelled && mGeneration == mIconCache.mUpdateHandlerGeneration;
+    }
+
+    private void onItemsProcessed(int count) {
+        mDone += count;
+        if (mDone - mDoneAtCheckpoint >= CHECKPOINT_INTERVAL) {
+            saveCheckpoint();
+        }
+        notifyProgress(false);
+    }
+
+    /**
+     * Commits the icons processed so far, and persists the progress of the run
+     */
+    private void saveCheckpoint() {
+        mDoneAtCheckpoint = mDone;
+        mIconCache.flushDbBatch();
+        mIconCache.getUpdateHandlerPrefs().edit()
+                .putInt(KEY_CHECKPOINT_DONE, mResumedDone + mDone)
+                .putLong(KEY_CHECKPOINT_ELAPSED, getElapsedTime())
+                .apply();
+    }
+
+    private long getElapsedTime() {
+        return mResumedElapsed + SystemClock.elapsedRealtime() - mStartTime;
+    }
+
+    private void notifyProgress(boolean force) {
+        if (mOnProgressListener == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (force || now - mLastProgressTime >= PROGRESS_INTERVAL_MS) {
+            mLastProgressTime = now;
+            mOnProgressListener.onUpdateProgress(
+                    mResumedDone + mDone, mResumedDone + mTotal, getElapsedTime());
+        }
+    }
+
+    /**
+     * Completes the run once {@link #finish()} has been called and all the updates are done:
+     * clears the checkpoint, and persists the change sequence so that the next run only checks
+     * the packages changed after this one started.
+     */
+    private void maybeCompleteRun() {
+        if (!mFinished || mActiveTasks > 0 || !isActive()) {
+            return;
+        }
+        SharedPreferences.Editor editor = mIconCache.getUpdateHandlerPrefs().edit()
+                .remove(KEY_CHECKPOINT_DONE)
+                .remove(KEY_CHECKPOINT_ELAPSED);
+        int bootCount = getBootCount();
+        if (mIncrementalUpdate && mChangeSequenceNumber >= 0 && bootCount >= 0
+                && mChangeSequenceDb == mIconCache.mIconDb
+                && mChangeSequenceDb.getTableCreationCount() == mChangeSequenceDbCreations) {
+            editor.putInt(KEY_BOOT_COUNT, bootCount)
+                    .putInt(KEY_SEQUENCE_NUMBER, mChangeSequenceNumber)
+                    .putString(KEY_SYSTEM_STATE, mIconCache.mSystemState);
+            mIconCache.mUpdateStateDb = mChangeSequenceDb;
+            mIconCache.mUpdateStateDbCreations = mChangeSequenceDbCreations;
+        }
+        editor.apply();
+        notifyProgress(true);
+    }
+
+    private void onTaskComplete() {
+        mActiveTasks--;
+        maybeCompleteRun();
     }
 
     /**
@@ -105,6 +350,17 @@ public class IconCacheUpdateHandler {
      */
     public <T> void updateIcons(List<T> apps, CachingLogic<T> cachingLogic,
             OnUpdateCallback onUpdateCallback) {
+        updateIcons(apps, cachingLogic, onUpdateCallback, null);
+    }
+
+    /**
+     * Same as {@link #updateIcons(List, CachingLogic, OnUpdateCallback)}, but the icons are
+     * updated in decreasing order of {@param priority}, for eg. to render the visible components
+     * first. {@param onUpdateCallback} is notified as soon as all the updated icons with the same
+     * priority are done, instead of once at the end.
+     */
+    public <T> void updateIcons(List<T> apps, CachingLogic<T> cachingLogic,
+            OnUpdateCallback onUpdateCallback, @Nullable ToIntFunction<T> priority) {
         // Filter the list per user
         HashMap<UserHandle, HashMap<ComponentName, T>> userComponentMap = new HashMap<>();
         int count = apps.size();
@@ -120,7 +376,8 @@ public class IconCacheUpdateHandler {
         }
 
         for (Entry<UserHandle, HashMap<ComponentName, T>> entry : userComponentMap.entrySet()) {
-            updateIconsPerUser(entry.getKey(), entry.getValue(), cachingLogic, onUpdateCallback);
+            updateIconsPerUser(entry.getKey(), entry.getValue(), cachingLogic, onUpdateCallback,
+                    priority);
         }
 
         // From now on, clear every valid item from the global valid map.
@@ -134,82 +391,135 @@ public class IconCacheUpdateHandler {
      */
     @SuppressWarnings("unchecked")
     private <T> void updateIconsPerUser(UserHandle user, HashMap<ComponentName, T> componentMap,
-            CachingLogic<T> cachingLogic, OnUpdateCallback onUpdateCallback) {
+            CachingLogic<T> cachingLogic, OnUpdateCallback onUpdateCallback,
+            @Nullable ToIntFunction<T> priority) {
         Set<String> ignorePackages = mPackagesToIgnore.get(user);
         if (ignorePackages == null) {
             ignorePackages = Collections.emptySet();
         }
         long userSerial = mIconCache.getSerialNumberForUser(user);
 
-        Stack<T> appsToUpdate = new Stack<>();
+        ArrayList<T> appsToUpdate = new ArrayList<>();
 
-        try (Cursor c = mIconCache.mIconDb.query(
-                new String[]{IconDB.COLUMN_ROWID, IconDB.COLUMN_COMPONENT,
-                        IconDB.COLUMN_LAST_UPDATED, IconDB.COLUMN_VERSION,
-                        IconDB.COLUMN_SYSTEM_STATE},
-                IconDB.COLUMN_USER + " = ? ",
-                new String[]{Long.toString(userSerial)})) {
+        final Set<String> changedPackages;
+        if (mIncrementalUpdate && Process.myUserHandle().equals(user)) {
+            loadChangedPackages();
+            changedPackages = mChangedPackages;
+        } else {
+            changedPackages = null;
+        }
 
-            final int indexComponent = c.getColumnIndex(IconDB.COLUMN_COMPONENT);
-            final int indexLastUpdate = c.getColumnIndex(IconDB.COLUMN_LAST_UPDATED);
-            final int indexVersion = c.getColumnIndex(IconDB.COLUMN_VERSION);
-            final int rowIndex = c.getColumnIndex(IconDB.COLUMN_ROWID);
-            final int systemStateIndex = c.getColumnIndex(IconDB.COLUMN_SYSTEM_STATE);
+        if (changedPackages == null) {
+            createPackageInfoMap();
+        }
 
-            while (c.moveToNext()) {
-                String cn = c.getString(indexComponent);
-                ComponentName component = ComponentName.unflattenFromString(cn);
-                PackageInfo info = mPkgInfoMap.get(component.getPackageName());
+        mIconCache.flushDbBatch();
+        String[] columns = new String[]{IconDB.COLUMN_ROWID, IconDB.COLUMN_COMPONENT,
+                IconDB.COLUMN_LAST_UPDATED, IconDB.COLUMN_VERSION, IconDB.COLUMN_SYSTEM_STATE};
+        try (Cursor c = mIconCache.mIconDb.query(columns,
+                IconDB.COLUMN_USER + " = ? ",
+                new String[]{Long.toString(userSerial)})) {
+            reconcileRows(c, user, componentMap, ignorePackages, changedPackages, appsToUpdate);
+        } catch (SQLiteException e) {
+            Log.d(TAG, "Error reading icon cache", e);
+            // Continue updating whatever we have read so far
+        }
 
-                int rowId = c.getInt(rowIndex);
-                if (info == null) {
-                    if (!ignorePackages.contains(component.getPackageName())) {
+        // Insert remaining apps.
+        if (!componentMap.isEmpty() || !appsToUpdate.isEmpty()) {
+            PriorityQueue<UpdateItem<T>> queue =
+                    new PriorityQueue<>(componentMap.size() + appsToUpdate.size());
+            for (T app : appsToUpdate) {
+                queue.add(new UpdateItem<>(app, true, priority == null
+                        ? 0 : priority.applyAsInt(app)));
+            }
+            for (T app : componentMap.values()) {
+                queue.add(new UpdateItem<>(app, false, priority == null
+                        ? 0 : priority.applyAsInt(app)));
+            }
+            mTotal += queue.size();
+            if (mParallelUpdate) {
+                new ParallelIconUpdateTask<>(userSerial, user, queue, cachingLogic,
+                        onUpdateCallback, mIconCache.getIconRenderExecutor()).scheduleNext();
+            } else {
+                new SerializedIconUpdateTask<>(userSerial, user, queue, cachingLogic,
+                        onUpdateCallback).scheduleNext();
+            }
+        }
+    }
 
-                        if (mFilterMode == MODE_SET_INVALID_ITEMS) {
-                            mIconCache.remove(component, user);
-                            mItemsToDelete.put(rowId, true);
-                        }
-                    }
-                    continue;
-                }
-                if ((info.applicationInfo.flags & ApplicationInfo.FLAG_IS_DATA_ONLY) != 0) {
-                    // Application is not present
-                    continue;
+    /**
+     * Checks the DB rows from {@param c} against the installed packages. Valid components are
+     * removed from {@param componentMap}, and the ones to update are added to
+     * {@param appsToUpdate}. The components left in {@param componentMap} have no row, and are
+     * added by the caller.
+     * @param changedPackages if not null, the rows of the other packages are valid as long as
+     *                        their system state matches, without loading the package info.
+     */
+    private <T> void reconcileRows(Cursor c, UserHandle user,
+            HashMap<ComponentName, T> componentMap, Set<String> ignorePackages,
+            @Nullable Set<String> changedPackages, List<T> appsToUpdate) {
+        final int indexComponent = c.getColumnIndex(IconDB.COLUMN_COMPONENT);
+        final int indexLastUpdate = c.getColumnIndex(IconDB.COLUMN_LAST_UPDATED);
+        final int indexVersion = c.getColumnIndex(IconDB.COLUMN_VERSION);
+        final int rowIndex = c.getColumnIndex(IconDB.COLUMN_ROWID);
+        final int systemStateIndex = c.getColumnIndex(IconDB.COLUMN_SYSTEM_STATE);
+
+        while (c.moveToNext()) {
+            String cn = c.getString(indexComponent);
+            ComponentName component = ComponentName.unflattenFromString(cn);
+            String packageName = component.getPackageName();
+            int rowId = c.getInt(rowIndex);
+
+            // The system state is also checked per package, as it can be overridden by
+            // getIconSystemState, for eg. to depend on the date.
+            if (changedPackages != null && !changedPackages.contains(packageName)
+                    && TextUtils.equals(c.getString(systemStateIndex),
+                            mIconCache.getIconSystemState(packageName))) {
+                componentMap.remove(component);
+                if (mFilterMode == MODE_CLEAR_VALID_ITEMS) {
+                    mItemsToDelete.put(rowId, false);
                 }
+                continue;
+            }
 
-                long updateTime = c.getLong(indexLastUpdate);
-                int version = c.getInt(indexVersion);
-                T app = componentMap.remove(component);
-                if (version == info.versionCode && updateTime == info.lastUpdateTime
-                        && TextUtils.equals(c.getString(systemStateIndex),
-                                mIconCache.getIconSystemState(info.packageName))) {
-
-                    if (mFilterMode == MODE_CLEAR_VALID_ITEMS) {
-                        mItemsToDelete.put(rowId, false);
-                    }
-                    continue;
-                }
+            PackageInfo info = getPackageInfo(packageName);
+            if (info == null) {
+                if (!ignorePackages.contains(component.getPackageName())) {
 
-                if (app == null) {
                     if (mFilterMode == MODE_SET_INVALID_ITEMS) {
                         mIconCache.remove(component, user);
                         mItemsToDelete.put(rowId, true);
                     }
-                } else {
-                    appsToUpdate.add(app);
                 }
+                continue;
+            }
+            if ((info.applicationInfo.flags & ApplicationInfo.FLAG_IS_DATA_ONLY) != 0) {
+                // Application is not present
+                continue;
             }
-        } catch (SQLiteException e) {
-            Log.d(TAG, "Error reading icon cache", e);
-            // Continue updating whatever we have read so far
-        }
 
-        // Insert remaining apps.
-        if (!componentMap.isEmpty() || !appsToUpdate.isEmpty()) {
-            Stack<T> appsToAdd = new Stack<>();
-            appsToAdd.addAll(componentMap.values());
-            new SerializedIconUpdateTask(userSerial, user, appsToAdd, appsToUpdate, cachingLogic,
-                    onUpdateCallback).scheduleNext();
+            long updateTime = c.getLong(indexLastUpdate);
+            int version = c.getInt(indexVersion);
+            T app = componentMap.remove(component);
+            if (version == info.versionCode && updateTime == info.lastUpdateTime
+                    && TextUtils.equals(c.getString(systemStateIndex),
+                            mIconCache.getIconSystemState(info.packageName))) {
+
+                if (mFilterMode == MODE_CLEAR_VALID_ITEMS) {
+                    mItemsToDelete.put(rowId, false);
+                }
+                continue;
+            }
+
+            if (app == null) {
+                if (mFilterMode == MODE_SET_INVALID_ITEMS) {
+                    mIconCache.remove(component, user);
+                    mItemsToDelete.put(rowId, true);
+                }
+            } else {
+                appsToUpdate.add(app);
+            }
         }
     }
 
@@ -237,75 +547,283 @@ public class IconCacheUpdateHandler {
         queryBuilder.append(')');
 
         if (deleteCount > 0) {
+            mIconCache.flushDbBatch();
             mIconCache.mIconDb.delete(queryBuilder.toString(), null);
         }
+
+        mFinished = true;
+        maybeCompleteRun();
     }
 
     /**
-     * A runnable that updates invalid icons and adds missing icons in the DB for the provided
-     * LauncherActivityInfo list. Items are updated/added one at a time, so that the
-     * worker thread doesn't get blocked.
+     * Returns a priority for {@link #updateIcons(List, CachingLogic, OnUpdateCallback,
+     * ToIntFunction)} which updates the {@param visibleComponents} before the other ones.
      */
-    private class SerializedIconUpdateTask<T> implements Runnable {
-        private final long mUserSerial;
-        private final UserHandle mUserHandle;
-        private final Stack<T> mAppsToAdd;
-        private final Stack<T> mAppsToUpdate;
-        private final CachingLogic<T> mCachingLogic;
-        private final HashSet<String> mUpdatedPackages = new HashSet<>();
+    public static <T> ToIntFunction<T> visibleFirst(
+            Set<ComponentKey> visibleComponents, CachingLogic<T> cachingLogic) {
+        return app -> visibleComponents.contains(new ComponentKey(
+                cachingLogic.getComponent(app), cachingLogic.getUser(app))) ? 1 : 0;
+    }
+
+    /**
+     * Base class for the tasks updating invalid icons and adding missing icons in the DB, in the
+     * order of their {@link UpdateItem}. The DB writes of a task are grouped in a batch which
+     * ends with the task.
+     */
+    private abstract class IconUpdateTask<T> implements Runnable {
+        protected final long mUserSerial;
+        protected final UserHandle mUserHandle;
+        protected final PriorityQueue<UpdateItem<T>> mQueue;
+        protected final CachingLogic<T> mCachingLogic;
         private final OnUpdateCallback mOnUpdateCallback;
+        private HashSet<String> mUpdatedPackages = new HashSet<>();
 
-        SerializedIconUpdateTask(long userSerial, UserHandle userHandle,
-                Stack<T> appsToAdd, Stack<T> appsToUpdate, CachingLogic<T> cachingLogic,
+        IconUpdateTask(long userSerial, UserHandle userHandle,
+                PriorityQueue<UpdateItem<T>> queue, CachingLogic<T> cachingLogic,
                 OnUpdateCallback onUpdateCallback) {
             mUserHandle = userHandle;
             mUserSerial = userSerial;
-            mAppsToAdd = appsToAdd;
-            mAppsToUpdate = appsToUpdate;
+            mQueue = queue;
             mCachingLogic = cachingLogic;
             mOnUpdateCallback = onUpdateCallback;
+            mIconCache.beginDbBatch();
+            mActiveTasks++;
+        }
+
+        protected void onIconUpdated(String packageName) {
+            mUpdatedPackages.add(packageName);
+        }
+
+        /**
+         * Notifies the callback if no update is left in the priority band {@param priority}
+         */
+        protected void maybeNotifyIconsUpdated(int priority) {
+            UpdateItem<T> next = mQueue.peek();
+            if (!mUpdatedPackages.isEmpty()
+                    && (next == null || !next.replaceExisting || next.priority != priority)) {
+                mOnUpdateCallback.onPackageIconsUpdated(mUpdatedPackages, mUserHandle);
+                mUpdatedPackages = new HashSet<>();
+            }
+        }
+
+        protected void onComplete() {
+            mIconCache.endDbBatch();
+            onTaskComplete();
+        }
+
+        public abstract void scheduleNext();
+    }
+
+    /**
+     * A runnable that updates invalid icons and adds missing icons in the DB for the provided
+     * LauncherActivityInfo list. Items are updated/added one at a time, so that the
+     * worker thread doesn't get blocked.
+     */
+    private class SerializedIconUpdateTask<T> extends IconUpdateTask<T> {
+
+        SerializedIconUpdateTask(long userSerial, UserHandle userHandle,
+                PriorityQueue<UpdateItem<T>> queue, CachingLogic<T> cachingLogic,
+                OnUpdateCallback onUpdateCallback) {
+            super(userSerial, userHandle, queue, cachingLogic, onUpdateCallback);
         }
 
         @Override
         public void run() {
-            if (!mAppsToUpdate.isEmpty()) {
-                T app = mAppsToUpdate.pop();
-                String pkg = mCachingLogic.getComponent(app).getPackageName();
-                PackageInfo info = mPkgInfoMap.get(pkg);
-
-                mIconCache.addIconToDBAndMemCache(
-                        app, mCachingLogic, info, mUserSerial, true /*replace existing*/);
-                mUpdatedPackages.add(pkg);
-
-                if (mAppsToUpdate.isEmpty() && !mUpdatedPackages.isEmpty()) {
-                    // No more app to update. Notify callback.
-                    mOnUpdateCallback.onPackageIconsUpdated(mUpdatedPackages, mUserHandle);
+            if (!isActive()) {
+                return;
+            }
+            UpdateItem<T> item = mQueue.poll();
+            if (item != null) {
+                String pkg = mCachingLogic.getComponent(item.app).getPackageName();
+                PackageInfo info = getPackageInfo(pkg);
+                // We do not check the package info when adding apps to the queue. Although every
+                // app should have package info, this is not guaranteed by the api
+                if (info != null) {
+                    mIconCache.addIconToDBAndMemCache(item.app, mCachingLogic, info,
+                            mUserSerial, item.replaceExisting);
+                }
+                if (item.replaceExisting) {
+                    onIconUpdated(pkg);
+                    maybeNotifyIconsUpdated(item.priority);
                 }
+                onItemsProcessed(1);
+            }
 
-                // Let it run one more time.
+            if (!mQueue.isEmpty()) {
                 scheduleNext();
-            } else if (!mAppsToAdd.isEmpty()) {
-                T app = mAppsToAdd.pop();
-                PackageInfo info = mPkgInfoMap.get(mCachingLogic.getComponent(app).getPackageName());
-                // We do not check the mPkgInfoMap when generating the mAppsToAdd. Although every
-                // app should have package info, this is not guaranteed by the api
-                if (info != null) {
-                    mIconCache.addIconToDBAndMemCache(app, mCachingLogic, info,
-                            mUserSerial, false /*replace existing*/);
+            } else {
+                onComplete();
+            }
+        }
+
+        @Override
+        public void scheduleNext() {
+            mIconCache.mWorkerHandler.postAtTime(this, ICON_UPDATE_TOKEN,
+                    SystemClock.uptimeMillis() + 1);
+        }
+    }
+
+    /**
+     * A runnable that updates invalid icons and adds missing icons in the DB, similar to
+     * {@link SerializedIconUpdateTask}, but which renders a batch of icons in parallel on the
+     * render executor. Once the batch is rendered, it is committed on the worker thread and
+     * the next batch is started. A batch only contains icons of the same priority.
+     */
+    private class ParallelIconUpdateTask<T> extends IconUpdateTask<T> {
+        private final Executor mRenderExecutor;
+
+        private final ArrayList<PendingIcon<T>> mBatch = new ArrayList<>(PARALLEL_BATCH_SIZE);
+        private int mBatchPriority;
+        private final AtomicInteger mPendingRenders = new AtomicInteger();
+
+        ParallelIconUpdateTask(long userSerial, UserHandle userHandle,
+                PriorityQueue<UpdateItem<T>> queue, CachingLogic<T> cachingLogic,
+                OnUpdateCallback onUpdateCallback, Executor renderExecutor) {
+            super(userSerial, userHandle, queue, cachingLogic, onUpdateCallback);
+            mRenderExecutor = renderExecutor;
+        }
+
+        @Override
+        public void run() {
+            if (!isActive()) {
+                // The run was cancelled while the batch was rendering
+                return;
+            }
+            commitBatch();
+            startNextBatch();
+        }
+
+        private void commitBatch() {
+            boolean hasUpdates = false;
+            for (PendingIcon<T> pending : mBatch) {
+                mIconCache.addIconToDBAndMemCache(pending.app, mCachingLogic, pending.info,
+                        mUserSerial, pending.replaceExisting, pending.icon);
+                if (pending.replaceExisting) {
+                    onIconUpdated(pending.info.packageName);
+                    hasUpdates = true;
                 }
+            }
+            int committed = mBatch.size();
+            mBatch.clear();
 
-                if (!mAppsToAdd.isEmpty()) {
-                    scheduleNext();
+            if (hasUpdates) {
+                maybeNotifyIconsUpdated(mBatchPriority);
+            }
+            if (committed > 0) {
+                onItemsProcessed(committed);
+            }
+        }
+
+        private void startNextBatch() {
+            while (mBatch.size() < PARALLEL_BATCH_SIZE && !mQueue.isEmpty()) {
+                if (!mBatch.isEmpty() && mQueue.peek().priority != mBatchPriority) {
+                    break;
+                }
+                UpdateItem<T> item = mQueue.poll();
+                mBatchPriority = item.priority;
+                ComponentName cn = mCachingLogic.getComponent(item.app);
+                PackageInfo info = getPackageInfo(cn.getPackageName());
+                if (info == null) {
+                    // Every app should have package info, but this is not guaranteed by the api
+                    onItemsProcessed(1);
+                    continue;
+                }
+                PendingIcon<T> pending = new PendingIcon<>(item.app, info, item.replaceExisting);
+                // Apps being added can reuse an existing high-res entry without rendering
+                pending.needsRender = item.replaceExisting
+                        || mIconCache.peekEntry(cn, mUserHandle, false) == null;
+                mBatch.add(pending);
+            }
+            if (mBatch.isEmpty()) {
+                onComplete();
+                return;
+            }
+
+            mPendingRenders.set(mBatch.size());
+            for (PendingIcon<T> pending : mBatch) {
+                if (!pending.needsRender) {
+                    onRenderComplete();
+                    continue;
                 }
+                mRenderExecutor.execute(() -> {
+                    try {
+                        pending.icon = mIconCache.loadIcon(mCachingLogic, pending.app);
+                    } catch (RuntimeException e) {
+                        // The icon will be loaded again on the worker thread while committing
+                        Log.w(TAG, "Error rendering icon in parallel", e);
+                    } finally {
+                        onRenderComplete();
+                    }
+                });
             }
         }
 
+        private void onRenderComplete() {
+            if (mPendingRenders.decrementAndGet() == 0) {
+                scheduleNext();
+            }
+        }
+
+        @Override
         public void scheduleNext() {
             mIconCache.mWorkerHandler.postAtTime(this, ICON_UPDATE_TOKEN,
-                    SystemClock.uptimeMillis() + 1);
+                    SystemClock.uptimeMillis());
         }
     }
 
+    /**
+     * An app waiting to be updated or added. Items are ordered by decreasing priority, with the
+     * updates before the additions for the same priority.
+     */
+    private static class UpdateItem<T> implements Comparable<UpdateItem<T>> {
+        final T app;
+        final boolean replaceExisting;
+        final int priority;
+
+        UpdateItem(T app, boolean replaceExisting, int priority) {
+            this.app = app;
+            this.replaceExisting = replaceExisting;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(UpdateItem<T> other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Boolean.compare(other.replaceExisting, replaceExisting);
+        }
+    }
+
+    private static class PendingIcon<T> {
+        final T app;
+        final PackageInfo info;
+        final boolean replaceExisting;
+
+        boolean needsRender;
+        // Written on the render thread, and read on the worker thread after the batch completes
+        BitmapInfo icon;
+
+        PendingIcon(T app, PackageInfo info, boolean replaceExisting) {
+            this.app = app;
+            this.info = info;
+            this.replaceExisting = replaceExisting;
+        }
+    }
+
+    /**
+     * Listener for the progress of an update run
+     */
+    public interface OnProgressListener {
+
+        /**
+         * @param done number of icons processed so far
+         * @param total number of icons to process in the run
+         * @param elapsedMillis time spent in the run so far
+         */
+        void onUpdateProgress(int done, int total, long elapsedMillis);
+    }
+
     public interface OnUpdateCallback {
 
         void onPackageIconsUpdated(HashSet<String> updatedPackages, UserHandle user);
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons.cache;
+
+import static com.android.launcher3.icons.BitmapInfo.LOW_RES_ICON;
+
+import android.content.ComponentName;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.launcher3.icons.BitmapInfo;
+import com.android.launcher3.icons.cache.BaseIconCache.CacheEntry;
+import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.ComponentKey.LookupKey;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory store for the entries of {@link BaseIconCache}, split in two tiers:
+ *   1) A compact tier holding the title, content description and color of every entry. This
+ *      tier is never evicted, so that labels don't need to be resolved again.
+ *   2) A high-res tier tracking the entries holding a high-res icon. When the total size of
+ *      this tier exceeds the limit of the {@link EvictionPolicy}, the least recently used
+ *      entries are replaced by a copy holding {@link BitmapInfo#LOW_RES_ICON}, and move back to
+ *      the compact tier only, until the tier is well below the limit. Entries already returned
+ *      to callers are never modified.
+ *
+ * Lookups can be made from any thread without blocking: the compact tier is a
+ * {@link ConcurrentHashMap}, and recency is an approximate access time stamped on the entry
+ * without any lock. Updates are serialized on this object, which is only held for in-memory
+ * bookkeeping. Entries must be put again after their bitmap is changed.
+ *
+ * The keys are also indexed by user and package, so that removing a package only visits the
+ * entries of that package.
+ */
+class IconMemoryCache {
+
+    private static final int INITIAL_ICON_CACHE_CAPACITY = 50;
+    // When the high-res tier exceeds its limit, it is trimmed down to this fraction of the limit,
+    // so that the least recently used entries are only sorted once every few puts.
+    private static final float TRIM_TARGET_RATIO = 0.75f;
+
+    // Key reused by the lookups of each thread, so that cache hits don't allocate
+    private static final ThreadLocal<LookupKey> sLookupKey =
+            ThreadLocal.withInitial(LookupKey::new);
+
+    private final boolean mEnabled;
+    private final EvictionPolicy mEvictionPolicy;
+
+    // Compact tier, containing all the entries
+    private final ConcurrentHashMap<ComponentKey, CacheEntry> mEntries =
+            new ConcurrentHashMap<>(INITIAL_ICON_CACHE_CAPACITY);
+
+    // High-res tier, containing the size of the entries holding a high-res icon. Guarded by this
+    // object.
+    private final HashMap<ComponentKey, Long> mHighResTier =
+            new HashMap<>(INITIAL_ICON_CACHE_CAPACITY);
+    private long mHighResSize = 0;
+
+    // Keys of all the entries, per user and package. Guarded by this object.
+    private final ArrayMap<UserHandle, HashMap<String, HashSet<ComponentKey>>> mPackageIndex =
+            new ArrayMap<>();
+
+    /**
+     * @param enabled if false, no entry is ever retained
+     */
+    IconMemoryCache(boolean enabled, @NonNull EvictionPolicy evictionPolicy) {
+        mEnabled = enabled;
+        mEvictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Returns the entry for the {@param key}. Can be called from any thread.
+     */
+    @Nullable
+    CacheEntry get(ComponentKey key) {
+        return getEntry(key);
+    }
+
+    /**
+     * Returns the entry for the {@param componentName} and {@param user}, without allocating a
+     * key. Can be called from any thread.
+     */
+    @Nullable
+    CacheEntry get(ComponentName componentName, UserHandle user) {
+        return getEntry(sLookupKey.get().set(componentName, user));
+    }
+
+    /**
+     * Returns the entry for the component named {@param packageName} followed by
+     * {@param classSuffix}, without allocating a key. Can be called from any thread.
+     */
+    @Nullable
+    CacheEntry get(String packageName, String classSuffix, UserHandle user) {
+        return getEntry(sLookupKey.get().setWithClassSuffix(packageName, classSuffix, user));
+    }
+
+    /**
+     * @param key a {@link ComponentKey} or a {@link LookupKey}
+     */
+    @Nullable
+    private CacheEntry getEntry(Object key) {
+        CacheEntry entry = mEntries.get(key);
+        if (entry != null) {
+            entry.lastAccessTime = SystemClock.uptimeMillis();
+        }
+        return entry;
+    }
+
+    /**
+     * Adds or updates the {@param entry}, moving it to the high-res tier if it holds a high-res
+     * icon.
+     */
+    synchronized void put(ComponentKey key, CacheEntry entry) {
+        if (!mEnabled) {
+            return;
+        }
+        entry.lastAccessTime = SystemClock.uptimeMillis();
+        if (mEntries.put(key, entry) == null) {
+            getPackageKeys(key, true).add(key);
+        }
+        removeHighRes(key);
+
+        long size = mEvictionPolicy.sizeOf(entry);
+        if (size > 0) {
+            mHighResTier.put(key, size);
+            mHighResSize += size;
+            trimToSize(key);
+        }
+    }
+
+    /**
+     * Replaces the entry for {@param key} by {@param newEntry} if it is still
+     * {@param oldEntry}, for eg. to install a high-res copy of a shared low-res entry.
+     * @return true if the entry was replaced
+     */
+    synchronized boolean replace(ComponentKey key, CacheEntry oldEntry, CacheEntry newEntry) {
+        if (!mEnabled || mEntries.get(key) != oldEntry) {
+            return false;
+        }
+        put(key, newEntry);
+        return true;
+    }
+
+    @Nullable
+    synchronized CacheEntry remove(ComponentKey key) {
+        removeHighRes(key);
+        CacheEntry entry = mEntries.remove(key);
+        if (entry != null) {
+            HashSet<ComponentKey> packageKeys = getPackageKeys(key, false);
+            if (packageKeys != null && packageKeys.remove(key) && packageKeys.isEmpty()) {
+                mPackageIndex.get(key.user).remove(key.componentName.getPackageName());
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Removes all the entries for the supplied package name
+     */
+    synchronized void removePackage(String packageName, UserHandle user) {
+        HashMap<String, HashSet<ComponentKey>> userIndex = mPackageIndex.get(user);
+        HashSet<ComponentKey> packageKeys =
+                userIndex == null ? null : userIndex.remove(packageName);
+        if (packageKeys == null) {
+            return;
+        }
+        for (ComponentKey key : packageKeys) {
+            removeHighRes(key);
+            mEntries.remove(key);
+        }
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mPackageIndex.clear();
+        mHighResTier.clear();
+        mHighResSize = 0;
+    }
+
+    private HashSet<ComponentKey> getPackageKeys(ComponentKey key, boolean create) {
+        HashMap<String, HashSet<ComponentKey>> userIndex = mPackageIndex.get(key.user);
+        if (userIndex == null) {
+            if (!create) {
+                return null;
+            }
+            userIndex = new HashMap<>();
+            mPackageIndex.put(key.user, userIndex);
+        }
+        String packageName = key.componentName.getPackageName();
+        HashSet<ComponentKey> packageKeys = userIndex.get(packageName);
+        if (packageKeys == null && create) {
+            packageKeys = new HashSet<>();
+            userIndex.put(packageName, packageKeys);
+        }
+        return packageKeys;
+    }
+
+    private void removeHighRes(ComponentKey key) {
+        Long size = mHighResTier.remove(key);
+        if (size != null) {
+            mHighResSize -= size;
+        }
+    }
+
+    /**
+     * When the total size exceeds the limit, demotes the least recently used high-res entries
+     * until the total size is below the trim target. The entry for {@param addedKey} is always
+     * kept, as it is about to be used.
+     */
+    private void trimToSize(ComponentKey addedKey) {
+        long maxSize = mEvictionPolicy.getMaxSize();
+        if (mHighResSize <= maxSize) {
+            return;
+        }
+        long targetSize = (long) (maxSize * TRIM_TARGET_RATIO);
+
+        // Access times are updated without the lock, so they are read once before sorting
+        ArrayList<Candidate> candidates = new ArrayList<>(mHighResTier.size());
+        for (ComponentKey key : mHighResTier.keySet()) {
+            CacheEntry entry = mEntries.get(key);
+            if (!key.equals(addedKey) && entry != null) {
+                candidates.add(new Candidate(key, entry));
+            }
+        }
+        Collections.sort(candidates, (a, b) -> Long.compare(a.accessTime, b.accessTime));
+
+        for (int i = 0; i < candidates.size() && mHighResSize > targetSize; i++) {
+            Candidate candidate = candidates.get(i);
+            removeHighRes(candidate.key);
+            mEntries.replace(candidate.key, candidate.entry, demote(candidate.entry));
+        }
+    }
+
+    private static CacheEntry demote(CacheEntry entry) {
+        return entry.withBitmap(BitmapInfo.of(LOW_RES_ICON, entry.bitmap.color));
+    }
+
+    private static class Candidate {
+
+        final ComponentKey key;
+        final CacheEntry entry;
+        final long accessTime;
+
+        Candidate(ComponentKey key, CacheEntry entry) {
+            this.key = key;
+            this.entry = entry;
+            this.accessTime = entry.lastAccessTime;
+        }
+    }
+}
@@ -22,8 +22,6 @@ import android.os.UserHandle;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.Arrays;
-
 public class ComponentKey {
 
     public final ComponentName componentName;
@@ -37,8 +35,16 @@ public class ComponentKey {
         }
         this.componentName = componentName;
         this.user = user;
-        mHashCode = Arrays.hashCode(new Object[] {componentName, user});
+        mHashCode = hash(componentName.getPackageName().hashCode(),
+                componentName.getClassName().hashCode(), user.hashCode());
+    }
 
+    /**
+     * Returns the hash code of a key, shared with {@link LookupKey}. String hash codes are
+     * cached, so this doesn't allocate.
+     */
+    private static int hash(int packageHash, int classHash, int userHash) {
+        return 31 * (31 * packageHash + classHash) + userHash;
     }
 
     @Override
@@ -48,8 +54,18 @@ public class ComponentKey {
 
     @Override
     public boolean equals(Object o) {
-        ComponentKey other = (ComponentKey) o;
-        return other.componentName.equals(componentName) && other.user.equals(user);
+        if (this == o) {
+            return true;
+        }
+        if (o instanceof ComponentKey) {
+            ComponentKey other = (ComponentKey) o;
+            return other.mHashCode == mHashCode
+                    && other.componentName.equals(componentName) && other.user.equals(user);
+        }
+        if (o instanceof LookupKey) {
+            return ((LookupKey) o).matches(this);
+        }
+        return false;
     }
 
     /**
@@ -81,4 +97,75 @@ public class ComponentKey {
             return null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Mutable key equal to the {@link ComponentKey} with the same component and user, used to
+     * look up keys in hash based collections without allocating a new key for every lookup.
+     * A lookup key must never be stored in a collection.
+     */
+    public static final class LookupKey {
+
+        private String mPackageName;
+        private String mClassName;
+        // Suffix appended to the package name to get the class name, when mClassName is null
+        private String mClassSuffix;
+        private UserHandle mUser;
+        private int mHashCode;
+
+        /**
+         * Updates this key to match {@param componentName} and {@param user}
+         */
+        public LookupKey set(@NonNull ComponentName componentName, @NonNull UserHandle user) {
+            mPackageName = componentName.getPackageName();
+            mClassName = componentName.getClassName();
+            mClassSuffix = null;
+            mUser = user;
+            mHashCode = hash(mPackageName.hashCode(), mClassName.hashCode(), user.hashCode());
+            return this;
+        }
+
+        /**
+         * Updates this key to match the component named {@param packageName} followed by
+         * {@param classSuffix}, without creating the class name.
+         */
+        public LookupKey setWithClassSuffix(@NonNull String packageName,
+                @NonNull String classSuffix, @NonNull UserHandle user) {
+            mPackageName = packageName;
+            mClassName = null;
+            mClassSuffix = classSuffix;
+            mUser = user;
+
+            // Same as the hash code of the concatenated string
+            int classHash = packageName.hashCode();
+            for (int i = 0; i < classSuffix.length(); i++) {
+                classHash = 31 * classHash + classSuffix.charAt(i);
+            }
+            mHashCode = hash(packageName.hashCode(), classHash, user.hashCode());
+            return this;
+        }
+
+        boolean matches(ComponentKey key) {
+            if (key.mHashCode != mHashCode || !key.user.equals(mUser)
+                    || !key.componentName.getPackageName().equals(mPackageName)) {
+                return false;
+            }
+            String className = key.componentName.getClassName();
+            if (mClassName != null) {
+                return className.equals(mClassName);
+            }
+            return className.length() == mPackageName.length() + mClassSuffix.length()
+                    && className.startsWith(mPackageName)
+                    && className.endsWith(mClassSuffix);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ComponentKey && matches((ComponentKey) o);
+        }
+    }
+}
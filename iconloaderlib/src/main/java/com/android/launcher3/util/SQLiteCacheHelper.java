@@ -7,11 +7,21 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.ArrayMap;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * An extension of {@link SQLiteOpenHelper} with utility methods for a single table cache DB.
  * Any exception during write operations are ignored, and any version change causes a DB reset.
+ * Subclasses can keep secondary tables, which are accessed by name and reset along with the
+ * main table.
  */
 public abstract class SQLiteCacheHelper {
     private static final String TAG = "SQLiteCacheHelper";
@@ -22,13 +32,20 @@ public abstract class SQLiteCacheHelper {
     private final MySQLiteOpenHelper mOpenHelper;
 
     private boolean mIgnoreWrites;
+    // Number of times the table was created since this helper was created, for eg. on a reset
+    private int mTableCreationCount = 0;
 
     public SQLiteCacheHelper(Context context, String name, int version, String tableName) {
+        this(context, name, version, tableName, Options.DEFAULT);
+    }
+
+    public SQLiteCacheHelper(Context context, String name, int version, String tableName,
+            @NonNull Options options) {
         if (IN_MEMORY_CACHE) {
             name = null;
         }
         mTableName = tableName;
-        mOpenHelper = new MySQLiteOpenHelper(context, name, version);
+        mOpenHelper = new MySQLiteOpenHelper(context, name, version, options);
 
         mIgnoreWrites = false;
     }
@@ -37,11 +54,18 @@ public abstract class SQLiteCacheHelper {
      * @see SQLiteDatabase#delete(String, String, String[])
      */
     public void delete(String whereClause, String[] whereArgs) {
+        delete(mTableName, whereClause, whereArgs);
+    }
+
+    /**
+     * Same as {@link #delete(String, String[])} for the table {@param tableName}
+     */
+    public void delete(String tableName, String whereClause, String[] whereArgs) {
         if (mIgnoreWrites) {
             return;
         }
         try {
-            mOpenHelper.getWritableDatabase().delete(mTableName, whereClause, whereArgs);
+            mOpenHelper.getWritableDatabase().delete(tableName, whereClause, whereArgs);
         } catch (SQLiteFullException e) {
             onDiskFull(e);
         } catch (SQLiteException e) {
@@ -53,12 +77,19 @@ public abstract class SQLiteCacheHelper {
      * @see SQLiteDatabase#insertWithOnConflict(String, String, ContentValues, int)
      */
     public void insertOrReplace(ContentValues values) {
+        insertOrReplace(mTableName, values);
+    }
+
+    /**
+     * Same as {@link #insertOrReplace(ContentValues)} for the table {@param tableName}
+     */
+    public void insertOrReplace(String tableName, ContentValues values) {
         if (mIgnoreWrites) {
             return;
         }
         try {
             mOpenHelper.getWritableDatabase().insertWithOnConflict(
-                    mTableName, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                    tableName, null, values, SQLiteDatabase.CONFLICT_REPLACE);
         } catch (SQLiteFullException e) {
             onDiskFull(e);
         } catch (SQLiteException e) {
@@ -66,6 +97,98 @@ public abstract class SQLiteCacheHelper {
         }
     }
 
+    /**
+     * Inserts or replaces all the {@param valuesList} in a single transaction. Rows with the same
+     * set of columns share a single compiled statement. As with individual writes, a row which
+     * fails is skipped without affecting the others.
+     * @see #insertOrReplace(ContentValues)
+     */
+    public void insertOrReplaceAll(List<ContentValues> valuesList) {
+        insertOrReplaceAll(mTableName, valuesList);
+    }
+
+    /**
+     * Same as {@link #insertOrReplaceAll(List)} for the table {@param tableName}
+     */
+    public void insertOrReplaceAll(String tableName, List<ContentValues> valuesList) {
+        if (mIgnoreWrites || valuesList.isEmpty()) {
+            return;
+        }
+        ArrayMap<String, SQLiteStatement> statements = new ArrayMap<>();
+        try {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                for (ContentValues values : valuesList) {
+                    String[] columns = values.keySet().toArray(new String[0]);
+                    Arrays.sort(columns);
+                    String sql = buildInsertOrReplaceSql(tableName, columns);
+
+                    // A failing row is skipped, so that it doesn't roll back the others. Only
+                    // the statement is rolled back, except when the disk is full.
+                    try {
+                        SQLiteStatement statement = statements.get(sql);
+                        if (statement == null) {
+                            statement = db.compileStatement(sql);
+                            statements.put(sql, statement);
+                        } else {
+                            statement.clearBindings();
+                        }
+                        for (int i = 0; i < columns.length; i++) {
+                            bindValue(statement, i + 1, values.get(columns[i]));
+                        }
+                        statement.executeInsert();
+                    } catch (SQLiteFullException e) {
+                        throw e;
+                    } catch (SQLiteException e) {
+                        Log.d(TAG, "Ignoring sqlite exception for a row", e);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteFullException e) {
+            onDiskFull(e);
+        } catch (SQLiteException e) {
+            Log.d(TAG, "Ignoring sqlite exception", e);
+        } finally {
+            for (int i = statements.size() - 1; i >= 0; i--) {
+                statements.valueAt(i).close();
+            }
+        }
+    }
+
+    private static String buildInsertOrReplaceSql(String tableName, String[] columns) {
+        StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ")
+                .append(tableName)
+                .append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", " : "").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        return sql.append(')').toString();
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else if (value instanceof Float || value instanceof Double) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
     private void onDiskFull(SQLiteFullException e) {
         Log.e(TAG, "Disk full, all write operations will be ignored", e);
         mIgnoreWrites = true;
@@ -79,6 +202,30 @@ public abstract class SQLiteCacheHelper {
                 mTableName, columns, selection, selectionArgs, null, null, null);
     }
 
+    /**
+     * Same as {@link #query(String[], String, String[])} for the table {@param tableName}
+     */
+    public Cursor query(String tableName, String[] columns, String selection,
+            String[] selectionArgs) {
+        return mOpenHelper.getReadableDatabase().query(
+                tableName, columns, selection, selectionArgs, null, null, null);
+    }
+
+    /**
+     * Returns the number of times the table was created or reset since this helper was created.
+     * A change in this number means that any state kept about the content of the table is no
+     * longer valid.
+     */
+    public int getTableCreationCount() {
+        try {
+            // Make sure that any pending version change is applied
+            mOpenHelper.getWritableDatabase();
+        } catch (SQLiteException e) {
+            Log.d(TAG, "Unable to open DB", e);
+        }
+        return mTableCreationCount;
+    }
+
     public void clear() {
         mOpenHelper.clearDB(mOpenHelper.getWritableDatabase());
     }
@@ -89,17 +236,44 @@ public abstract class SQLiteCacheHelper {
 
     protected abstract void onCreateTable(SQLiteDatabase db);
 
+    /**
+     * Called when the DB is reset, before {@link #onCreateTable}. Subclasses keeping secondary
+     * tables must drop them here.
+     */
+    protected void onDropSecondaryTables(SQLiteDatabase db) { }
+
     /**
      * A private inner class to prevent direct DB access.
      */
     private class MySQLiteOpenHelper extends NoLocaleSQLiteHelper {
 
-        public MySQLiteOpenHelper(Context context, String name, int version) {
+        private final Options mOptions;
+
+        public MySQLiteOpenHelper(Context context, String name, int version, Options options) {
             super(context, name, version);
+            mOptions = options;
+            setWriteAheadLoggingEnabled(options.mWriteAheadLogging);
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // Synchronous and cache size only apply to the primary connection, which is the one
+            // used for all writes.
+            if (mOptions.mSynchronousMode != null) {
+                db.execSQL("PRAGMA synchronous=" + mOptions.mSynchronousMode);
+            }
+            if (mOptions.mCacheSizeKb > 0) {
+                // Negative values are interpreted as KiB instead of pages
+                db.execSQL("PRAGMA cache_size=-" + mOptions.mCacheSizeKb);
+            }
+            if (mOptions.mMaxSqlCacheSize > 0) {
+                db.setMaxSqlCacheSize(mOptions.mMaxSqlCacheSize);
+            }
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
+            mTableCreationCount++;
             onCreateTable(db);
         }
 
@@ -119,7 +293,79 @@ public abstract class SQLiteCacheHelper {
 
         private void clearDB(SQLiteDatabase db) {
             db.execSQL("DROP TABLE IF EXISTS " + mTableName);
+            onDropSecondaryTables(db);
             onCreate(db);
         }
     }
+
+    /**
+     * Configuration used when opening the DB. All options are off by default, which keeps the
+     * platform defaults: rollback journal and full synchronous writes.
+     */
+    public static final class Options {
+
+        public static final Options DEFAULT = new Builder().build();
+
+        private final boolean mWriteAheadLogging;
+        @Nullable
+        private final String mSynchronousMode;
+        private final int mCacheSizeKb;
+        private final int mMaxSqlCacheSize;
+
+        private Options(Builder builder) {
+            mWriteAheadLogging = builder.mWriteAheadLogging;
+            mSynchronousMode = builder.mSynchronousMode;
+            mCacheSizeKb = builder.mCacheSizeKb;
+            mMaxSqlCacheSize = builder.mMaxSqlCacheSize;
+        }
+
+        public static final class Builder {
+
+            private boolean mWriteAheadLogging = false;
+            @Nullable
+            private String mSynchronousMode = null;
+            private int mCacheSizeKb = 0;
+            private int mMaxSqlCacheSize = 0;
+
+            /**
+             * Enables write-ahead logging, which lets reads run concurrently with a write
+             * transaction on another thread.
+             */
+            public Builder setWriteAheadLoggingEnabled(boolean enabled) {
+                mWriteAheadLogging = enabled;
+                return this;
+            }
+
+            /**
+             * Sets the synchronous mode of the DB, for eg. "NORMAL". With write-ahead logging,
+             * NORMAL only syncs on checkpoints, and can only lose the last transactions on a
+             * power loss, which is acceptable for a cache.
+             */
+            public Builder setSynchronousMode(@Nullable String mode) {
+                mSynchronousMode = mode;
+                return this;
+            }
+
+            /**
+             * Sets the size of the page cache of the write connection in KiB
+             */
+            public Builder setCacheSizeKb(int cacheSizeKb) {
+                mCacheSizeKb = cacheSizeKb;
+                return this;
+            }
+
+            /**
+             * Sets the number of prepared statements cached by each connection
+             * @see SQLiteDatabase#setMaxSqlCacheSize(int)
+             */
+            public Builder setMaxSqlCacheSize(int maxSqlCacheSize) {
+                mMaxSqlCacheSize = maxSqlCacheSize;
+                return this;
+            }
+
+            public Options build() {
+                return new Options(this);
+            }
+        }
+    }
 }
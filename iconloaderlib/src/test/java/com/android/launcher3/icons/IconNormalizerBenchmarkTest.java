@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compares the time taken by {@link IconNormalizer#findRowBorders} and by a per-byte scan, on
+ * synthetic masks the size of a normalized icon. The timings are only reported, as they depend
+ * on the host, and the results of both scans must match.
+ *
+ * This is not part of the regular test run. To run it, remove the {@link Ignore} annotation and
+ * run {@code ./gradlew :iconloaderlib:testDebugUnitTest --info
+ * --tests com.android.launcher3.icons.IconNormalizerBenchmarkTest}, which shows the timings.
+ */
+@Ignore("Benchmark, run manually")
+public class IconNormalizerBenchmarkTest {
+
+    private static final int WARM_UP_ITERATIONS = 200;
+    private static final int ITERATIONS = 1000;
+
+    @Test
+    public void benchmarkFindRowBorders() {
+        // Multiple of 8, and not a multiple of 8
+        for (int size : new int[] {192, 189}) {
+            benchmark("circle", newCircleMask(size), size);
+            benchmark("transparent", IconNormalizerTest.newMask(size, size, size), size);
+        }
+    }
+
+    private static void benchmark(String name, byte[] mask, int size) {
+        ByteBuffer buffer = ByteBuffer.wrap(mask);
+        float[] left = new float[size];
+        float[] right = new float[size];
+        float[] expectedLeft = new float[size];
+        float[] expectedRight = new float[size];
+
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            IconNormalizer.findRowBorders(buffer, size, size, size, left, right);
+            IconNormalizerTest.findRowBordersPerByte(
+                    mask, size, size, size, expectedLeft, expectedRight);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            IconNormalizer.findRowBorders(buffer, size, size, size, left, right);
+        }
+        long wordTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            IconNormalizerTest.findRowBordersPerByte(
+                    mask, size, size, size, expectedLeft, expectedRight);
+        }
+        long byteTime = System.nanoTime() - start;
+
+        assertArrayEquals(expectedLeft, left, 0);
+        assertArrayEquals(expectedRight, right, 0);
+        System.out.printf("findRowBorders %s %dx%d: word=%dns byte=%dns per scan%n",
+                name, size, size, wordTime / ITERATIONS, byteTime / ITERATIONS);
+    }
+
+    private static byte[] newCircleMask(int size) {
+        byte[] mask = new byte[size * size];
+        float radius = size * 0.46f;
+        float center = (size - 1) / 2f;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                float dx = x - center;
+                float dy = y - center;
+                float distance = (float) Math.sqrt(dx * dx + dy * dy);
+                // Anti-aliased edge, crossing the visibility threshold
+                float alpha = Math.max(0, Math.min(1, radius - distance + 0.5f));
+                mask[y * size + x] = (byte) Math.round(alpha * 255);
+            }
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Tests for the word at a time scan of {@link IconNormalizer#findRowBorders}, against a per-byte
+ * scan of the same mask.
+ */
+public class IconNormalizerTest {
+
+    // Highest alpha which is not considered visible
+    private static final int MAX_INVISIBLE_ALPHA = 0x28;
+
+    @Test
+    public void findRowBorders_transparentMask() {
+        for (int width = 1; width <= 33; width++) {
+            assertBordersMatch(newMask(width, width, width), width, width, width);
+        }
+    }
+
+    @Test
+    public void findRowBorders_thresholdBoundary() {
+        for (int width = 1; width <= 33; width++) {
+            // A row with only invisible pixels, and rows with a single visible pixel at every x
+            int height = width + 1;
+            byte[] mask = newMask(width, width, height);
+            fill(mask, 0, width, (byte) MAX_INVISIBLE_ALPHA);
+            for (int x = 0; x < width; x++) {
+                int rowStart = (x + 1) * width;
+                fill(mask, rowStart, rowStart + width, (byte) MAX_INVISIBLE_ALPHA);
+                mask[rowStart + x] = (byte) (MAX_INVISIBLE_ALPHA + 1);
+            }
+            assertBordersMatch(mask, width, width, height);
+        }
+    }
+
+    @Test
+    public void findRowBorders_opaqueBytes() {
+        // Alpha values with the high bit set must not carry into the neighboring bytes
+        for (int width = 1; width <= 33; width++) {
+            byte[] mask = newMask(width, width, 2);
+            fill(mask, 0, width, (byte) 0xFF);
+            fill(mask, width, 2 * width, (byte) 0x80);
+            assertBordersMatch(mask, width, width, 2);
+        }
+    }
+
+    @Test
+    public void findRowBorders_randomMasks() {
+        Random random = new Random(42);
+        for (int width = 1; width <= 70; width++) {
+            for (int padding : new int[] {0, 1, 3, 8}) {
+                int stride = width + padding;
+                int height = 1 + random.nextInt(20);
+                byte[] mask = newMask(width, stride, height);
+                for (int y = 0; y < height; y++) {
+                    // Sparse rows, with alpha values around the threshold
+                    for (int n = random.nextInt(4); n > 0; n--) {
+                        mask[y * stride + random.nextInt(width)] =
+                                (byte) (MAX_INVISIBLE_ALPHA - 2 + random.nextInt(5));
+                    }
+                }
+                // Visible values in the padding must be ignored
+                for (int y = 0; y < height; y++) {
+                    fill(mask, y * stride + width, (y + 1) * stride, (byte) 0xFF);
+                }
+                assertBordersMatch(mask, width, stride, height);
+            }
+        }
+    }
+
+    static byte[] newMask(int width, int stride, int height) {
+        return new byte[stride * height];
+    }
+
+    private static void fill(byte[] mask, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            mask[i] = value;
+        }
+    }
+
+    private static void assertBordersMatch(byte[] mask, int width, int stride, int height) {
+        float[] expectedLeft = new float[height];
+        float[] expectedRight = new float[height];
+        findRowBordersPerByte(mask, stride, width, height, expectedLeft, expectedRight);
+
+        float[] left = new float[height];
+        float[] right = new float[height];
+        IconNormalizer.findRowBorders(
+                ByteBuffer.wrap(mask), stride, width, height, left, right);
+
+        String message = "width=" + width + " stride=" + stride;
+        assertArrayEquals(message, expectedLeft, left, 0);
+        assertArrayEquals(message, expectedRight, right, 0);
+    }
+
+    /**
+     * Reference implementation, checking one pixel at a time
+     */
+    static void findRowBordersPerByte(byte[] mask, int stride, int width, int height,
+            float[] outLeftBorder, float[] outRightBorder) {
+        for (int y = 0; y < height; y++) {
+            int first = -1;
+            int last = -1;
+            for (int x = 0; x < width; x++) {
+                if ((mask[y * stride + x] & 0xFF) > MAX_INVISIBLE_ALPHA) {
+                    if (first == -1) {
+                        first = x;
+                    }
+                    last = x;
+                }
+            }
+            outLeftBorder[y] = first;
+            outRightBorder[y] = last;
+        }
+    }
+}